@@ -0,0 +1,132 @@
+package clox.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import clox.ObjectLox.ObjFunction;
+import clox.utility.OutputSink;
+import clox.vm;
+import clox.vm.InterpretResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The classic clox benchmark programs from bench/lox, measured end to end through vm.interpret(), and
+// separately for compiling and for running an already compiled script. Every iteration gets a fresh VM, so no
+// iteration sees the globals, interned strings or heap left behind by the previous one. The VM is not rebuilt
+// per invocation because the fixture would then sit between every pair of timed calls.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassicBenchmarks {
+    @State(Scope.Thread)
+    public static class Program {
+        @Param({"fib", "binary_trees", "equality", "instantiation", "invocation", "method_call", "properties",
+                "string_equality", "trees", "zoo"})
+        public String name;
+
+        String source;
+        private OutputSink stdout;
+
+        @Setup(Level.Trial)
+        public void load() throws IOException {
+            source = readProgram(name);
+            stdout = vm.setOutput(new OutputSink(OutputStream.nullOutputStream()));
+        }
+
+        @TearDown(Level.Trial)
+        public void restoreOutput() {
+            vm.setOutput(stdout);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FreshVm {
+        @Setup(Level.Iteration)
+        public void init() {
+            vm.initVM();
+        }
+
+        @TearDown(Level.Iteration)
+        public void free() {
+            vm.freeVM();
+        }
+    }
+
+    // Compiles a pool of copies of the program before the iteration, each invocation runs the next one. An
+    // iteration is a few dozen runs at most, so only an unusually long one wraps around and runs a copy again.
+    @State(Scope.Thread)
+    public static class CompiledProgram {
+        static final int POOL = 64;
+
+        ObjFunction[] scripts = new ObjFunction[POOL];
+        int next;
+
+        @Setup(Level.Iteration)
+        public void compile(Program program) {
+            vm.initVM();
+            for (int i = 0; i < POOL; i++) {
+                scripts[i] = vm.compileScript(program.source);
+                if (scripts[i] == null) throw new IllegalStateException("Could not compile " + program.name);
+                vm.retainScript(scripts[i]);
+            }
+            next = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void free() {
+            vm.freeVM();
+        }
+
+        ObjFunction nextScript() {
+            ObjFunction script = scripts[next];
+            next = (next + 1) % POOL;
+            return script;
+        }
+    }
+
+    @Benchmark
+    public InterpretResult endToEnd(Program program, FreshVm fresh) {
+        return check(vm.interpret(program.source), program);
+    }
+
+    @Benchmark
+    public ObjFunction compileOnly(Program program, FreshVm fresh) {
+        return vm.compileScript(program.source);
+    }
+
+    @Benchmark
+    public InterpretResult runOnly(Program program, CompiledProgram compiled) {
+        return check(vm.runScript(compiled.nextScript()), program);
+    }
+
+    //======================================Advanced functions==========================================================
+    static String readProgram(String name) throws IOException {
+        try (InputStream in = ClassicBenchmarks.class.getResourceAsStream("/benchmarks/" + name + ".lox")) {
+            if (in == null) throw new IOException("No benchmark program " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static InterpretResult check(InterpretResult result, Program program) {
+        if (result != InterpretResult.INTERPRET_OK) {
+            throw new IllegalStateException(program.name + " finished with " + result);
+        }
+        return result;
+    }
+}
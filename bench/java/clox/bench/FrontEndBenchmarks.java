@@ -0,0 +1,129 @@
+package clox.bench;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import clox.ObjectLox.ObjFunction;
+import clox.utility.OutputSink;
+import clox.Scanner;
+import clox.Scanner.Token;
+import clox.vm;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static clox.Scanner.TokenType.TOKEN_EOF;
+
+// Scanner and compiler throughput over synthetic sources from SourceGenerator. Besides operations per second,
+// the counters report tokens, lines and allocated bytes per second; allocatedBytes / tokens is the allocation
+// per token. The largest sizes need a lot of heap, select them explicitly, e.g. -p size=100MB.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FrontEndBenchmarks {
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"1KB", "64KB", "1MB", "10MB", "100MB"})
+        public String size;
+
+        @Param({"MIXED", "NESTED", "FUNCTIONS", "STRINGS"})
+        public SourceGenerator.Shape shape;
+
+        String source;
+        int lines;
+        int tokens;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            source = SourceGenerator.generate(shape, SourceGenerator.parseSize(size));
+            lines = SourceGenerator.countLines(source);
+            Scanner.initScanner(source);
+            do {
+                tokens++;
+            } while (Scanner.sckanToken().type != TOKEN_EOF);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long tokens;
+        public long lines;
+        public long allocatedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+            lines = 0;
+            allocatedBytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CompilerVm {
+        private OutputSink stdout;
+
+        @Setup(Level.Iteration)
+        public void init() {
+            stdout = vm.setOutput(new OutputSink(OutputStream.nullOutputStream()));
+            vm.initVM();
+        }
+
+        @TearDown(Level.Iteration)
+        public void free() {
+            vm.freeVM();
+            vm.setOutput(stdout);
+        }
+    }
+
+    @Benchmark
+    public int scan(Input input, Counters counters) {
+        long allocated = allocatedBytes();
+        Scanner.initScanner(input.source);
+        int tokens = 0;
+        int lengths = 0;
+        for (; ; ) {
+            Token token = Scanner.sckanToken();
+            tokens++;
+            lengths += token.length;
+            if (token.type == TOKEN_EOF) break;
+        }
+        counters.allocatedBytes += allocatedBytes() - allocated;
+        counters.tokens += tokens;
+        counters.lines += input.lines;
+        return lengths;
+    }
+
+    @Benchmark
+    public ObjFunction compile(Input input, Counters counters, CompilerVm compiler) {
+        long allocated = allocatedBytes();
+        ObjFunction function = vm.compileScript(input.source);
+        if (function == null) throw new IllegalStateException("Generated source does not compile");
+        counters.allocatedBytes += allocatedBytes() - allocated;
+        counters.tokens += input.tokens;
+        counters.lines += input.lines;
+        return function;
+    }
+
+    //======================================Advanced functions==========================================================
+    private static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,111 @@
+package clox.bench;
+
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import clox.utility.NumberFormatter;
+import clox.utility.OutputSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Printing numbers into an OutputSink : NumberFormatter writing into the buffer against the previous path,
+// Double.toString() followed by print(CharSequence), and String.format("%g") for reference. Times are per number.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberFormatBenchmarks {
+    static final int COUNT = 1024;
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        @Param({"INTEGERS", "FRACTIONS", "MIXED"})
+        public String kind;
+
+        double[] values = new double[COUNT];
+        OutputSink sink;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            Random random = new Random(42);
+            for (int i = 0; i < COUNT; i++) {
+                switch (kind) {
+                    case "INTEGERS":  values[i] = random.nextInt(100_000); break;
+                    case "FRACTIONS": values[i] = random.nextInt(100_000) / 100.0; break;
+                    default:          values[i] = mixed(random); break;
+                }
+            }
+            sink = new OutputSink(OutputStream.nullOutputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void flush() {
+            sink.flush();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void formatter(Numbers numbers) {
+        OutputSink sink = numbers.sink;
+        for (double value : numbers.values) {
+            sink.print(value);
+            sink.println();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void formatterToString(Numbers numbers) {
+        OutputSink sink = numbers.sink;
+        for (double value : numbers.values) {
+            sink.print(NumberFormatter.toString(value));
+            sink.println();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void doubleToString(Numbers numbers) {
+        OutputSink sink = numbers.sink;
+        for (double value : numbers.values) {
+            sink.print(Double.toString(value));
+            sink.println();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void stringFormat(Numbers numbers) {
+        OutputSink sink = numbers.sink;
+        for (double value : numbers.values) {
+            sink.print(String.format("%g", value));
+            sink.println();
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    // Integers, money amounts, ratios and a few values that print in exponent notation.
+    private static double mixed(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:  return random.nextInt(1_000_000);
+            case 1:  return random.nextInt(1_000_000) / 100.0;
+            case 2:  return random.nextDouble();
+            default: return random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+        }
+    }
+}
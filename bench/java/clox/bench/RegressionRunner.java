@@ -0,0 +1,239 @@
+package clox.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import clox.utility.OutputSink;
+import clox.vm;
+import clox.vm.InterpretResult;
+
+// Runs every .lox program of a corpus directory through vm.interpret() and compares wall time, instructions
+// executed, objects allocated and peak bytesAllocated against a committed JSON baseline. Exits with 1 when
+// any metric is worse than its baseline by more than the tolerance, so it can gate a release build.
+//
+//   java -cp target/benchmarks.jar clox.bench.RegressionRunner [--corpus=DIR] [--baseline=FILE]
+//        [--warmup=N] [--runs=N] [--tolerance=PERCENT] [--time-tolerance=PERCENT] [--no-fork] [--update]
+public class RegressionRunner {
+    static final String[] METRICS = {"wallMillis", "instructions", "allocations", "peakBytes"};
+    private static final Pattern ENTRY = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\\{([^}]*)}");
+    private static final String RESULT = "result:";
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\"\\s*:\\s*([-0-9.eE]+)");
+
+    private static Path corpus = Path.of("bench/lox");
+    private static Path baselinePath = Path.of("bench/baseline.json");
+    private static int warmup = 5;
+    private static int runs = 5;
+    private static double tolerance = 2;
+    private static double timeTolerance = 25;
+    private static boolean update;
+    private static boolean fork = true;
+    private static Path child;
+
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            if (!parseOption(arg)) {
+                System.err.println("Usage: RegressionRunner [--corpus=DIR] [--baseline=FILE] [--warmup=N]"
+                        + " [--runs=N] [--tolerance=PERCENT] [--time-tolerance=PERCENT] [--no-fork] [--update]");
+                System.exit(64);
+            }
+        }
+
+        if (child != null) {
+            double[] metrics = measure(child.toString(), Files.readString(child));
+            if (metrics == null) System.exit(1);
+            StringBuilder line = new StringBuilder(RESULT);
+            for (double metric : metrics) line.append(' ').append(metric);
+            System.out.println(line);
+            return;
+        }
+
+        Map<String, double[]> results = new LinkedHashMap<>();
+        for (Path program : programs(corpus)) {
+            String name = program.getFileName().toString().replaceFirst("\\.lox$", "");
+            double[] metrics = fork ? measureInChild(program) : measure(name, Files.readString(program));
+            if (metrics == null) System.exit(1);
+            results.put(name, metrics);
+        }
+
+        if (update) {
+            writeBaseline(baselinePath, results);
+            System.out.println("Wrote " + results.size() + " programs to " + baselinePath);
+            return;
+        }
+        if (!Files.exists(baselinePath)) {
+            System.err.println("No baseline " + baselinePath + ", create one with --update.");
+            System.exit(1);
+        }
+        if (compare(readBaseline(baselinePath), results) > 0) System.exit(1);
+    }
+
+    // Fastest wall time of the runs after the warmup runs, which is steadier than the median on a busy box, and
+    // the counters of the last run. Every run gets a fresh VM, so only the wall time carries noise.
+    static double[] measure(String name, String source) {
+        OutputSink stdout = vm.setOutput(new OutputSink(OutputStream.nullOutputStream()));
+        try {
+            double[] times = new double[runs];
+            double[] metrics = new double[METRICS.length];
+            for (int run = -warmup; run < runs; run++) {
+                vm.initVM();
+                long start = System.nanoTime();
+                InterpretResult result = vm.interpret(source);
+                long elapsed = System.nanoTime() - start;
+                metrics[1] = vm.instructions;
+                metrics[2] = vm.objectsAllocated;
+                metrics[3] = vm.peakBytesAllocated;
+                vm.freeVM();
+
+                if (result != InterpretResult.INTERPRET_OK) {
+                    System.err.println(name + " finished with " + result);
+                    return null;
+                }
+                if (run >= 0) times[run] = elapsed / 1_000_000.0;
+            }
+            metrics[0] = Arrays.stream(times).min().getAsDouble();
+            return metrics;
+        } finally {
+            vm.setOutput(stdout);
+        }
+    }
+
+    // Each program runs in a JVM of its own by default, so the JIT compiles the interpreter loop for that
+    // program alone and the order of the corpus does not leak into the timings.
+    static double[] measureInChild(Path program) throws IOException {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), RegressionRunner.class.getName(),
+                "--warmup=" + warmup, "--runs=" + runs, "--child=" + program));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (process.waitFor() != 0) return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        for (String line : output.split("\n")) {
+            if (!line.startsWith(RESULT)) continue;
+            String[] fields = line.substring(RESULT.length()).trim().split(" ");
+            return Arrays.stream(fields).mapToDouble(Double::parseDouble).toArray();
+        }
+        System.err.println("No result from " + program);
+        return null;
+    }
+
+    // Prints one line per program and metric, returns the number of regressions.
+    static int compare(Map<String, double[]> baseline, Map<String, double[]> results) {
+        int regressions = 0;
+        System.out.printf("%-20s %-14s %14s %14s %9s%n", "program", "metric", "baseline", "current", "change");
+        for (Map.Entry<String, double[]> entry : results.entrySet()) {
+            double[] expected = baseline.get(entry.getKey());
+            if (expected == null) {
+                System.out.printf("%-20s not in the baseline%n", entry.getKey());
+                continue;
+            }
+            for (int i = 0; i < METRICS.length; i++) {
+                double current = entry.getValue()[i];
+                double change = expected[i] == 0 ? (current == 0 ? 0 : 100) : (current / expected[i] - 1) * 100;
+                boolean regressed = change > (i == 0 ? timeTolerance : tolerance);
+                if (regressed) regressions++;
+                System.out.printf("%-20s %-14s %14.1f %14.1f %+8.1f%%%s%n", entry.getKey(), METRICS[i],
+                        expected[i], current, change, regressed ? "  REGRESSION" : "");
+            }
+        }
+        System.out.println(regressions == 0 ? "No regressions." : regressions + " regressions.");
+        return regressions;
+    }
+
+    // The baseline holds one program per line, as written by writeBaseline().
+    static Map<String, double[]> readBaseline(Path path) throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        Matcher entry = ENTRY.matcher(Files.readString(path));
+        while (entry.find()) {
+            double[] metrics = new double[METRICS.length];
+            Matcher field = FIELD.matcher(entry.group(2));
+            while (field.find()) {
+                int metric = Arrays.asList(METRICS).indexOf(field.group(1));
+                if (metric != -1) metrics[metric] = Double.parseDouble(field.group(2));
+            }
+            baseline.put(entry.group(1), metrics);
+        }
+        return baseline;
+    }
+
+    static void writeBaseline(Path path, Map<String, double[]> results) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            writer.write("{\n");
+            int written = 0;
+            for (Map.Entry<String, double[]> entry : results.entrySet()) {
+                double[] metrics = entry.getValue();
+                writer.write(String.format(Locale.ROOT,
+                        "  \"%s\": {\"%s\": %.1f, \"%s\": %d, \"%s\": %d, \"%s\": %d}%s%n", entry.getKey(), METRICS[0], metrics[0], METRICS[1], (long) metrics[1],
+                        METRICS[2], (long) metrics[2], METRICS[3], (long) metrics[3],
+                        ++written < results.size() ? "," : ""));
+            }
+            writer.write("}\n");
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    private static List<Path> programs(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> programs = new ArrayList<>();
+            files.filter(file -> file.toString().endsWith(".lox")).sorted().forEach(programs::add);
+            return programs;
+        }
+    }
+
+    private static boolean parseOption(String option) {
+        int equals = option.indexOf('=');
+        String name = equals == -1 ? option : option.substring(0, equals);
+        String value = equals == -1 ? null : option.substring(equals + 1);
+        try {
+            switch (name) {
+                case "--corpus":
+                    corpus = Path.of(value);
+                    return true;
+                case "--baseline":
+                    baselinePath = Path.of(value);
+                    return true;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    return warmup >= 0;
+                case "--runs":
+                    runs = Integer.parseInt(value);
+                    return runs > 0;
+                case "--tolerance":
+                    tolerance = Double.parseDouble(value);
+                    return true;
+                case "--time-tolerance":
+                    timeTolerance = Double.parseDouble(value);
+                    return true;
+                case "--no-fork":
+                    fork = false;
+                    return value == null;
+                case "--child":
+                    child = Path.of(value);
+                    return true;
+                case "--update":
+                    update = true;
+                    return value == null;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package clox.bench;
+
+// Synthetic Lox sources of a given size for the front-end benchmarks. A chunk holds at most 256 constants and
+// every global declaration takes two of them, so functions are grouped in a tree: the script declares at most
+// FAN_OUT functions, each group function declares at most FAN_OUT local functions, and the leaves carry code.
+public final class SourceGenerator {
+    public enum Shape {
+        MIXED, NESTED, FUNCTIONS, STRINGS
+    }
+
+    static final int FAN_OUT = 100;
+    static final int NESTING_DEPTH = 64;
+
+    private final Shape shape;
+    private final int size;
+    private final StringBuilder out;
+    private int functions;
+
+    private SourceGenerator(Shape shape, int size) {
+        this.shape = shape;
+        this.size = size;
+        this.out = new StringBuilder(size + 4096);
+    }
+
+    static String generate(Shape shape, int size) {
+        SourceGenerator generator = new SourceGenerator(shape, size);
+        int leafSize = generator.leaf().length();
+        int levels = 0;
+        for (long capacity = (long) leafSize * FAN_OUT; capacity < size; capacity *= FAN_OUT) levels++;
+        generator.group(levels, "");
+        return generator.out.toString();
+    }
+
+    // Accepts sizes such as 512, 1KB, 64KB or 100MB.
+    static int parseSize(String size) {
+        String upper = size.trim().toUpperCase();
+        if (upper.endsWith("MB")) return Integer.parseInt(upper.substring(0, upper.length() - 2)) * 1024 * 1024;
+        if (upper.endsWith("KB")) return Integer.parseInt(upper.substring(0, upper.length() - 2)) * 1024;
+        return Integer.parseInt(upper);
+    }
+
+    static int countLines(String source) {
+        int lines = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    //======================================Advanced functions==========================================================
+    private void group(int level, String indent) {
+        for (int i = 0; i < FAN_OUT && (i == 0 || out.length() < size); i++) {
+            if (level == 0) {
+                out.append(indent).append(leaf().replace("\n", "\n" + indent).stripTrailing()).append('\n');
+            } else {
+                out.append(indent).append("fun g").append(functions++).append("() {\n");
+                group(level - 1, indent + "  ");
+                out.append(indent).append("}\n");
+            }
+        }
+    }
+
+    private String leaf() {
+        int id = functions++;
+        switch (shape) {
+            case NESTED:    return nested(id);
+            case FUNCTIONS: return "fun f" + id + "(a) { return a + 1; }\n";
+            case STRINGS:   return strings(id);
+            default:        return mixed(id);
+        }
+    }
+
+    private static String mixed(int id) {
+        return "fun f" + id + "(a, b) {\n"
+                + "  var total = 0;\n"
+                + "  for (var i = 0; i < a; i = i + 1) {\n"
+                + "    if (i > b and i != 3) {\n"
+                + "      total = total + i * 2;\n"
+                + "    } else {\n"
+                + "      total = total - (b / 4);\n"
+                + "    }\n"
+                + "  }\n"
+                + "  // Comments are skipped by the scanner.\n"
+                + "  var label = \"item\" + \"-" + id + "\";\n"
+                + "  while (total > 100) total = total / 2;\n"
+                + "  if (!(total == nil) or false) return total;\n"
+                + "  return label;\n"
+                + "}\n";
+    }
+
+    private static String nested(int id) {
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < NESTING_DEPTH; i++) {
+            expression.append(i % 2 == 0 ? "(a + " : "(b * ");
+        }
+        expression.append('a');
+        for (int i = 0; i < NESTING_DEPTH; i++) expression.append(')');
+        return "fun f" + id + "(a, b) {\n  return " + expression + ";\n}\n";
+    }
+
+    private static String strings(int id) {
+        StringBuilder body = new StringBuilder("fun f" + id + "() {\n");
+        for (int i = 0; i < 16; i++) {
+            body.append("  var s").append(i).append(" = \"Lorem ipsum dolor sit amet, consectetur adipiscing ")
+                    .append(id).append('.').append(i).append("\";\n");
+        }
+        return body.append("  return s0 + s15;\n}\n").toString();
+    }
+}
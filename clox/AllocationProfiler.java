@@ -0,0 +1,164 @@
+package clox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static clox.ObjectLox.*;
+import static clox.vm.*;
+
+// Allocation sites of Lox objects. Every allocateObject() call is attributed to the ObjType, the function
+// and the instruction that was executing, and sweep() reports which tracked objects it kept or freed.
+// The start of the current instruction is known only in the loop below, selected by vm.run() while
+// tracking is on; allocations made under another diagnostic loop fall back to the last byte read.
+public class AllocationProfiler {
+    static boolean tracking;
+
+    private static final int TYPE_COUNT = ObjType.values().length;
+    private static final Map<ObjFunction, Map<Integer, Site>> sites = new IdentityHashMap<>();
+    private static final Map<Obj, Site> live = new IdentityHashMap<>();
+    private static final Map<Obj, Site> survivors = new IdentityHashMap<>();
+    private static int currentDepth;
+    private static int currentOffset;
+
+    static class Site {
+        final ObjType type;
+        final ObjFunction function;
+        final int offset;
+        final int line;
+        long count;
+        long bytes;
+        long survived;
+        long collected;
+
+        Site(ObjType type, ObjFunction function, int offset, int line) {
+            this.type = type;
+            this.function = function;
+            this.offset = offset;
+            this.line = line;
+        }
+
+        String where() {
+            if (function == null) return "<compile>";
+            return Profiler.functionName(function) + ":" + line + "@" + offset;
+        }
+    }
+
+    public static void enable() {
+        tracking = true;
+    }
+
+    public static void reset() {
+        sites.clear();
+        live.clear();
+        survivors.clear();
+    }
+
+    static InterpretResult run() {
+        try {
+            for (; ; ) {
+                currentDepth = vm.frameCount;
+                currentOffset = vm.frames[vm.frameCount - 1].ip;
+                InterpretResult result = step();
+                if (result != null) return result;
+            }
+        } finally {
+            currentDepth = 0;
+        }
+    }
+
+    static void allocated(Obj object) {
+        ObjFunction function = null;
+        int offset = 0;
+        if (vm.frameCount > 0) {
+            CallFrame frame = vm.frames[vm.frameCount - 1];
+            function = frame.closure.function;
+            offset = vm.frameCount == currentDepth ? currentOffset : Math.max(frame.ip - 1, 0);
+        }
+
+        int key = offset * TYPE_COUNT + object.type.ordinal();
+        Map<Integer, Site> functionSites = sites.computeIfAbsent(function, k -> new HashMap<>());
+        Site site = functionSites.get(key);
+        if (site == null) {
+            int line = function == null ? 0 : function.chunk.lines.get(offset);
+            site = new Site(object.type, function, offset, line);
+            functionSites.put(key, site);
+        }
+        site.count++;
+        site.bytes += estimateSize(object);
+        live.put(object, site);
+    }
+
+    // Called from sweep() for every object it visits, before the unmarked ones are freed.
+    static void swept(Obj object, boolean marked) {
+        if (marked) {
+            Site site = live.get(object);
+            if (site != null && survivors.put(object, site) == null) site.survived++;
+        } else {
+            Site site = live.remove(object);
+            if (site == null) return;
+            survivors.remove(object);
+            site.collected++;
+        }
+    }
+
+    public static void report(PrintStream out, int top) {
+        List<Site> all = new ArrayList<>();
+        for (Map<Integer, Site> function : sites.values()) all.addAll(function.values());
+
+        long count = 0;
+        long bytes = 0;
+        for (Site site : all) {
+            count += site.count;
+            bytes += site.bytes;
+        }
+        out.printf("%d objects, %d estimated bytes, %d allocation sites%n", count, bytes, all.size());
+
+        out.println("top sites by count");
+        all.sort(Comparator.comparingLong((Site site) -> site.count).reversed());
+        printSites(out, all, top);
+
+        out.println("top sites by estimated bytes");
+        all.sort(Comparator.comparingLong((Site site) -> site.bytes).reversed());
+        printSites(out, all, top);
+    }
+
+    //======================================Advanced functions==========================================================
+    private static void printSites(PrintStream out, List<Site> all, int top) {
+        out.printf("%-32s %-16s %10s %12s %10s %10s %10s%n",
+                "site", "type", "count", "bytes", "survived", "collected", "live");
+        for (int i = 0; i < Math.min(top, all.size()); i++) {
+            Site site = all.get(i);
+            out.printf("%-32s %-16s %10d %12d %10d %10d %10d%n", site.where(), site.type, site.count,
+                    site.bytes, site.survived, site.collected, site.count - site.collected);
+        }
+    }
+
+    // Shallow JVM footprint at allocation time: object header and fields, plus the backing arrays that
+    // exist right away. Lists, maps and tables that grow later are not charged to the site again.
+    private static long estimateSize(Obj object) {
+        switch (object.type) {
+            case OBJ_BOUND_METHOD: return 24;
+            case OBJ_CLASS:        return 24 + 24;
+            case OBJ_CLOSURE: {
+                ObjClosure closure = (ObjClosure) object;
+                return 24 + 16 + 4L * closure.upvalueCount;
+            }
+            case OBJ_FUNCTION:     return 32 + 48;
+            case OBJ_INSTANCE:     return 24 + 24;
+            case OBJ_LIST:         return 32 + 16;
+            case OBJ_MAP:          return 40 + 4 * 16;
+            case OBJ_NATIVE:       return 24;
+            case OBJ_STRING: {
+                ObjString string = (ObjString) object;
+                return 32 + 24 + 16 + (string.chars == null ? 0 : string.chars.length());
+            }
+            case OBJ_UPVALUE:      return 32;
+            default:               return 16;
+        }
+    }
+}
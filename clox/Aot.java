@@ -0,0 +1,248 @@
+package clox;
+
+import clox.utility.ClassFileWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import static clox.Chunk.addConstant;
+import static clox.Chunk.writeChunk;
+import static clox.ObjectLox.*;
+import static clox.Value.*;
+import static clox.vm.*;
+import static clox.vm.InterpretResult.*;
+
+// Ahead-of-time compilation, selected with --compile-jar=FILE. The script is compiled as usual and every function
+// is translated by Jit into a class of its own, LoxFunction0 being the script and the others following in the
+// order their OP_CLOSURE constants appear. The chunks themselves are stored in the SCRIPT resource, so the JAR
+// runs without scanning or parsing anything. LoxMain attaches each class to its function as the compiled code and
+// runs the script under Jit, which interprets again only the functions whose type guards fail.
+public class Aot {
+    static final String SCRIPT = "clox/script.bin";
+    private static final String MAIN = "clox/LoxMain";
+    private static final String FUNCTION = "clox/LoxFunction";
+    private static final String CODE = "clox/Jit$Code";
+
+    private static final int NUMBER = 0;
+    private static final int STRING = 1;
+    private static final int FUNCTION_CONSTANT = 2;
+    private static final int FUNCTION_REFERENCE = 3; // A function written before, inlined calls refer to it again.
+
+    // Writes the JAR : the interpreter classes, one class per function, LoxMain and the chunks.
+    public static void writeJar(ObjFunction script, Path path) throws IOException {
+        List<ObjFunction> functions = new ArrayList<>();
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        writeFunction(new DataOutputStream(chunks), script, functions);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN.replace('/', '.'));
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(path), manifest)) {
+            copyRuntime(jar);
+            boolean[] compiled = new boolean[functions.size()];
+            for (int i = 0; i < functions.size(); i++) {
+                byte[] bytes = Jit.translate(FUNCTION + i, functions.get(i).chunk);
+                compiled[i] = bytes != null;
+                if (bytes != null) putEntry(jar, FUNCTION + i + ".class", bytes);
+            }
+            putEntry(jar, MAIN + ".class", mainClass(compiled));
+            putEntry(jar, SCRIPT, chunks.toByteArray());
+        }
+    }
+
+    // Called by LoxMain with one Code per function, null for those left to the interpreter.
+    public static void run(Jit.Code[] codes) {
+        Jit.enable(Jit.threshold);
+        vm.initVM();
+        ObjFunction script;
+        try (InputStream resource = Aot.class.getClassLoader().getResourceAsStream(SCRIPT)) {
+            if (resource == null) throw new IOException(SCRIPT + " not found");
+            script = readFunction(new DataInputStream(resource), codes, new ArrayList<>());
+        } catch (IOException e) {
+            System.err.println("Could not read " + SCRIPT);
+            System.exit(74);
+            return;
+        }
+
+        InterpretResult result = runScript(script);
+        vm.freeVM();
+        if (result == INTERPRET_RUNTIME_ERROR) System.exit(70);
+    }
+
+    //======================================Advanced functions==========================================================
+    private static void writeFunction(DataOutputStream out, ObjFunction function, List<ObjFunction> functions)
+            throws IOException {
+        functions.add(function);
+        out.writeInt(function.arity);
+        out.writeInt(function.upvalueCount);
+        out.writeBoolean(function.name != null);
+        if (function.name != null) out.writeUTF(function.name.chars);
+
+        Chunk chunk = function.chunk;
+        out.writeInt(chunk.count);
+        for (int i = 0; i < chunk.count; i++) {
+            out.writeByte(chunk.code.get(i));
+            out.writeInt(chunk.lines.get(i));
+        }
+        out.writeInt(chunk.constants.count);
+        for (int i = 0; i < chunk.constants.count; i++) {
+            Value value = chunk.constants.values.get(i);
+            if (IS_NUMBER(value)) {
+                out.writeByte(NUMBER);
+                out.writeDouble(AS_NUMBER(value));
+            } else if (IS_STRING(value)) {
+                out.writeByte(STRING);
+                out.writeUTF(AS_STRING(value).chars);
+            } else if (IS_FUNCTION(value) && functions.contains(AS_FUNCTION(value))) {
+                out.writeByte(FUNCTION_REFERENCE);
+                out.writeInt(functions.indexOf(AS_FUNCTION(value)));
+            } else if (IS_FUNCTION(value)) {
+                out.writeByte(FUNCTION_CONSTANT);
+                writeFunction(out, AS_FUNCTION(value), functions);
+            } else {
+                throw new IllegalStateException("Constant " + value + " can not be written.");
+            }
+        }
+        out.writeInt(chunk.inlined == null ? 0 : chunk.inlined.size());
+        if (chunk.inlined == null) return;
+        for (Chunk.InlinedCall call : chunk.inlined) {
+            out.writeInt(call.start);
+            out.writeInt(call.end);
+            out.writeInt(call.function);
+            out.writeInt(call.line);
+        }
+    }
+
+    // Reads the functions back in the order writeFunction() numbered them. Each one stays on the stack while it is
+    // filled in, which keeps it and its constants alive across the allocations; the ones read already stay
+    // reachable through the constants of the script.
+    private static ObjFunction readFunction(DataInputStream in, Jit.Code[] codes, List<ObjFunction> functions)
+            throws IOException {
+        int index = functions.size();
+        ObjFunction function = newFunction();
+        functions.add(function);
+        push(OBJ_VAL(function));
+        function.arity = in.readInt();
+        function.upvalueCount = in.readInt();
+        if (in.readBoolean()) function.name = copyString(in.readUTF());
+
+        Chunk chunk = function.chunk;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int code = in.readUnsignedByte();
+            writeChunk(chunk, code, in.readInt());
+        }
+        int constants = in.readInt();
+        for (int i = 0; i < constants; i++) {
+            int tag = in.readUnsignedByte();
+            if (tag == NUMBER) {
+                addConstant(chunk, NUMBER_VAL(in.readDouble()));
+            } else if (tag == STRING) {
+                addConstant(chunk, OBJ_VAL(copyString(in.readUTF())));
+            } else if (tag == FUNCTION_REFERENCE) {
+                addConstant(chunk, OBJ_VAL(functions.get(in.readInt())));
+            } else {
+                addConstant(chunk, OBJ_VAL(readFunction(in, codes, functions)));
+            }
+        }
+        int inlined = in.readInt();
+        for (int i = 0; i < inlined; i++) {
+            Chunk.InlinedCall call = new Chunk.InlinedCall();
+            call.start = in.readInt();
+            call.end = in.readInt();
+            call.function = in.readInt();
+            call.line = in.readInt();
+            if (chunk.inlined == null) chunk.inlined = new ArrayList<>();
+            chunk.inlined.add(call);
+        }
+        if (function.upvalueCount == 0) function.closure = newClosure(function);
+
+        Jit.Code code = codes[index];
+        if (code != null) {
+            code.constants = chunk.constants.values.toArray(new Value[0]);
+            function.jitCode = code;
+        }
+        pop();
+        return function;
+    }
+
+    // public static void main(String[] args) { Aot.run(new Jit.Code[]{new LoxFunction0(), ...}); }
+    private static byte[] mainClass(boolean[] compiled) {
+        ClassFileWriter writer = new ClassFileWriter(MAIN, "java/lang/Object");
+        ClassFileWriter.Code main = writer.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "main",
+                "([Ljava/lang/String;)V", 5, 1);
+        main.pushInt(compiled.length);
+        main.opShort(0xbd, writer.classRef(CODE)); // anewarray
+        for (int i = 0; i < compiled.length; i++) {
+            if (!compiled[i]) continue;
+            main.op(0x59); // dup
+            main.pushInt(i);
+            main.opShort(0xbb, writer.classRef(FUNCTION + i)); // new
+            main.op(0x59);
+            main.opShort(0xb7, writer.methodRef(FUNCTION + i, "<init>", "()V")); // invokespecial
+            main.op(0x53); // aastore
+        }
+        main.opShort(0xb8, writer.methodRef("clox/Aot", "run", "([L" + CODE + ";)V"));
+        main.op(0xb1); // return
+        main.finish();
+        return writer.toByteArray();
+    }
+
+    // The classes of clox, from the directory or the JAR this class was loaded from.
+    private static void copyRuntime(JarOutputStream jar) throws IOException {
+        Path location;
+        try {
+            location = Path.of(Aot.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        if (Files.isDirectory(location)) {
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(location.resolve("clox"))) {
+                classes = files.filter(Files::isRegularFile).sorted().toList();
+            }
+            for (Path file : classes) {
+                String name = location.relativize(file).toString().replace('\\', '/');
+                if (isRuntimeClass(name)) putEntry(jar, name, Files.readAllBytes(file));
+            }
+            return;
+        }
+        try (JarFile runtime = new JarFile(location.toFile())) {
+            for (Enumeration<JarEntry> entries = runtime.entries(); entries.hasMoreElements(); ) {
+                JarEntry entry = entries.nextElement();
+                if (!isRuntimeClass(entry.getName())) continue;
+                try (InputStream in = runtime.getInputStream(entry)) {
+                    putEntry(jar, entry.getName(), in.readAllBytes());
+                }
+            }
+        }
+    }
+
+    // Leaves out the benchmarks, and the classes written for a script when the runtime is itself such a JAR.
+    private static boolean isRuntimeClass(String name) {
+        return name.startsWith("clox/") && name.endsWith(".class") && !name.startsWith("clox/bench/")
+                && !name.startsWith(FUNCTION) && !name.startsWith(MAIN + ".");
+    }
+
+    private static void putEntry(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+}
@@ -3,9 +3,11 @@ package clox;
 import clox.utility.IDGenerator;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import static clox.Memory.*;
+import static clox.ObjectLox.AS_FUNCTION;
 import static clox.vm.pop;
 import static clox.vm.push;
 import static clox.Value.*;
@@ -27,6 +29,10 @@ public class Chunk {
         OP_GET_PROPERTY,
         OP_SET_PROPERTY,
         OP_GET_SUPER,
+        OP_BUILD_LIST,
+        OP_BUILD_MAP,
+        OP_GET_INDEX,
+        OP_SET_INDEX,
         OP_EQUAL,
         OP_GREATER,
         OP_LESS,
@@ -41,6 +47,7 @@ public class Chunk {
         OP_JUMP_IF_FALSE,
         OP_LOOP,
         OP_CALL,
+        OP_TAIL_CALL,
         OP_INVOKE,
         OP_SUPER_INVOKE,
         OP_CLOSURE,
@@ -48,7 +55,38 @@ public class Chunk {
         OP_RETURN,
         OP_CLASS,
         OP_INHERIT,
-        OP_METHOD;
+        OP_METHOD,
+        // Quickened forms, written over OP_ADD .. OP_LESS by the VM once the operand types of a site are known.
+        OP_ADD_NUM,
+        OP_ADD_STR,
+        OP_SUBTRACT_NUM,
+        OP_MULTIPLY_NUM,
+        OP_DIVIDE_NUM,
+        OP_GREATER_NUM,
+        OP_LESS_NUM,
+        // Numeric locals pass : operands marked raw live as doubles in vm.numbers, their vm.stack entry is null.
+        OP_CONSTANT_RAW,
+        OP_GET_LOCAL_RAW,
+        OP_SET_LOCAL_RAW,
+        OP_ADD_RAW,
+        OP_SUBTRACT_RAW,
+        OP_MULTIPLY_RAW,
+        OP_DIVIDE_RAW,
+        OP_NEGATE_RAW,
+        OP_EQUAL_RAW,
+        OP_GREATER_RAW,
+        OP_LESS_RAW,
+        OP_BOX,
+        OP_UNBOX,
+        // Written by Optimizer in place of an expression that repeats the one just before it.
+        OP_DUP,
+        // Inliner : a call whose callee is copied right after the guard, and the return out of that copy.
+        OP_CALL_GUARD,
+        OP_INVOKE_GUARD,
+        OP_INLINE_RETURN,
+        // Compiler.hoist() : a global cached in a hidden local before a loop, and a read of that local.
+        OP_HOIST,
+        OP_GET_HOISTED;
 
         public final int opcode;
         OpCode() {
@@ -61,6 +99,16 @@ public class Chunk {
     List<Integer> code;
     List<Integer> lines;
     public ValueArray constants;
+    BitSet polymorphic; // Offsets whose quickened form failed its guard, they stay generic.
+    List<InlinedCall> inlined; // Bodies copied in by Inliner, null when there are none.
+
+    // [start, end) holds the body of the function in constant, inlined at a call on line.
+    static class InlinedCall {
+        int start;
+        int end;
+        int function;
+        int line;
+    }
 
     public static void initChunk(Chunk chunk) {
         chunk.count = 0;
@@ -69,6 +117,8 @@ public class Chunk {
         chunk.lines = new ArrayList<>();
         chunk.constants = new ValueArray();
         initValueArray(chunk.constants);
+        chunk.polymorphic = null;
+        chunk.inlined = null;
     }
 
     public static void freeChunk(Chunk chunk) {
@@ -91,6 +141,70 @@ public class Chunk {
         chunk.count++;
     }
 
+    // Bytes of the instruction at offset, opcode and operands.
+    static int instructionLength(Chunk chunk, int offset) {
+        switch (OpCode.values()[chunk.code.get(offset)]) {
+            case OP_INVOKE_GUARD:
+                return 6;
+            case OP_CALL_GUARD:
+                return 5;
+            case OP_INLINE_RETURN:
+                return 4;
+            case OP_JUMP:
+            case OP_JUMP_IF_FALSE:
+            case OP_LOOP:
+            case OP_GET_HOISTED:
+            case OP_INVOKE:
+            case OP_SUPER_INVOKE:
+                return 3;
+            case OP_CLOSURE:
+                return 2 + 2 * AS_FUNCTION(chunk.constants.values.get(chunk.code.get(offset + 1))).upvalueCount;
+            case OP_CONSTANT:
+            case OP_HOIST:
+            case OP_GET_LOCAL:
+            case OP_SET_LOCAL:
+            case OP_GET_UPVALUE:
+            case OP_SET_UPVALUE:
+            case OP_GET_GLOBAL:
+            case OP_DEFINE_GLOBAL:
+            case OP_SET_GLOBAL:
+            case OP_GET_PROPERTY:
+            case OP_SET_PROPERTY:
+            case OP_GET_SUPER:
+            case OP_BUILD_LIST:
+            case OP_BUILD_MAP:
+            case OP_CALL:
+            case OP_TAIL_CALL:
+            case OP_CLASS:
+            case OP_METHOD:
+            case OP_CONSTANT_RAW:
+            case OP_GET_LOCAL_RAW:
+            case OP_SET_LOCAL_RAW:
+            case OP_BOX:
+            case OP_UNBOX:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    // Where the jump of the instruction at offset goes. The guards and OP_INLINE_RETURN end with a forward jump
+    // like the one of OP_JUMP.
+    static int jumpTarget(Chunk chunk, int offset) {
+        int end = offset + instructionLength(chunk, offset);
+        int jump = chunk.code.get(end - 2) << 8 | chunk.code.get(end - 1);
+        return chunk.code.get(offset) == OpCode.OP_LOOP.opcode ? end - jump : end + jump;
+    }
+
+    // The inlined body that covers offset, or null.
+    static InlinedCall inlinedAt(Chunk chunk, int offset) {
+        if (chunk.inlined == null) return null;
+        for (InlinedCall call : chunk.inlined) {
+            if (call.start <= offset && offset < call.end) return call;
+        }
+        return null;
+    }
+
     public static int addConstant(Chunk chunk, Value value) {
         push(value);
         writeValueArray(chunk.constants, value);
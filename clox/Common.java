@@ -3,10 +3,6 @@ package clox;
 import static clox.Main.UINT8_MAX;
 
 public class Common {
-    public static final boolean DEBUG_PRINT_CODE = true;
-    public static final boolean DEBUG_TRACE_EXECUTION = false;
-
     public static final boolean DEBUG_STRESS_GC = false;
-    public static final boolean DEBUG_LOG_GC = false;
     public static final int UINT8_COUNT = (UINT8_MAX + 1);
 }
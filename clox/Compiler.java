@@ -2,24 +2,30 @@ package clox;
 
 import clox.utility.IDGenerator;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static clox.Chunk.*;
 import static clox.Chunk.OpCode.*;
-import static clox.Common.DEBUG_PRINT_CODE;
 import static clox.Compiler.FunctionType.*;
 import static clox.Compiler.ParseFn.*;
 import static clox.Compiler.Precedence.*;
-import static clox.Debug.disassembleChunk;
 import static clox.Main.*;
 import static clox.Memory.markObject;
 import static clox.ObjectLox.*;
 import static clox.Scanner.*;
 import static clox.Scanner.TokenType.*;
+import static clox.Value.NUMBER_VAL;
 import static clox.Value.OBJ_VAL;
 import static clox.utility.Utility.*;
+import static clox.vm.pop;
+import static clox.vm.push;
 
 public class Compiler {
     public static class Parser {
@@ -63,7 +69,10 @@ public class Compiler {
         dot,
         this_,
         super_,
-        literal
+        literal,
+        list,
+        map,
+        subscript
     }
 
     public static class ParseRule {
@@ -82,6 +91,10 @@ public class Compiler {
         Token name;
         int depth;
         boolean isCaptured;
+        boolean numeric; // Numeric locals pass : the slot holds a raw number in vm.numbers.
+        boolean hoisted; // Hidden local caching the global of the same name, see hoist().
+        int initStart; // Offset of the initializer, the local is live from start on.
+        int start;
     }
 
     public static class Upvalue {
@@ -104,6 +117,11 @@ public class Compiler {
         int localCount;
         Upvalue[] upvalues = new Upvalue[UINT8_COUNT];
         int scopeDepth;
+        // Constant slots of the number literals compiled so far, open addressing on the bits of the value.
+        long[] numberKeys;
+        int[] numberSlots; // Constant index + 1, 0 marks a free entry.
+        int numberCount;
+        List<Optimizer.LocalRange> localRanges; // Of the locals that went out of scope, when optimizing.
 
         public CompilerCompiler() {
             for (int i = 0; i < UINT8_COUNT; i++) {
@@ -112,14 +130,40 @@ public class Compiler {
         }
     }
 
+    // Where the expression compiled last left its value : a Value on vm.stack, a raw number in vm.numbers, or a
+    // number literal loaded by the OP_CONSTANT at literalOffset, which turns into OP_CONSTANT_RAW when a raw
+    // operand needs it.
+    public enum Operand {
+        BOXED,
+        RAW,
+        LITERAL,
+    }
+
     public static class ClassCompiler {
         ClassCompiler enclosing;
         boolean hasSuperclass;
     }
 
     static Parser parser = new Parser();
+    static int lastCall = -1; // Offset of the last OP_CALL emitted, a candidate for OP_TAIL_CALL.
+    // Offset right after the last global read and its name, a callee Inliner may know.
+    static int lastGlobal = -1;
+    static String lastGlobalName;
     static CompilerCompiler current;
     static ClassCompiler currentClass;
+    // Numeric locals pass, off by default, see --numeric-locals. A block local whose initializer is a number is
+    // kept raw on speculation; an assignment of any other value or a capture by a closure records its declaration
+    // in boxedLocals and the whole source is compiled again with that local boxed.
+    public static boolean numericLocals;
+    static Set<Integer> boxedLocals = new HashSet<>();
+    // Global hoisting, off by default, see --hoist-globals. The globals a loop reads and does not assign itself are
+    // copied into hidden locals before it starts, vm.globalVersion tells a read whether one of them was stored since.
+    public static boolean hoistGlobals;
+    static final int MAX_HOISTED = 16;
+    static boolean recompile;
+    static List<ObjFunction> compiled = new ArrayList<>(); // Functions of the current pass, for --print-code.
+    static Operand operand = Operand.BOXED;
+    static int literalOffset;
     static Chunk compilingChunk = new Chunk();
     static Chunk currentChunk() {
         return current.function.chunk;
@@ -226,6 +270,21 @@ public class Compiler {
         return constant;
     }
 
+    // Repeated number literals of a function share one constant slot.
+    static int numberConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (current.numberKeys != null) {
+            int mask = current.numberKeys.length - 1;
+            for (int i = hashBits(bits) & mask; current.numberSlots[i] != 0; i = (i + 1) & mask) {
+                if (current.numberKeys[i] == bits) return current.numberSlots[i] - 1;
+            }
+        }
+
+        int constant = makeConstant(NUMBER_VAL(value));
+        if (constant == currentChunk().constants.count - 1) rememberNumber(current, bits, constant);
+        return constant;
+    }
+
     static void emitConstant(Value value) {
         emitBytes(OP_CONSTANT.opcode, makeConstant(value));
     }
@@ -247,8 +306,13 @@ public class Compiler {
         compiler.type = type;
         compiler.localCount = 0;
         compiler.scopeDepth = 0;
+        compiler.numberKeys = null;
+        compiler.numberSlots = null;
+        compiler.numberCount = 0;
+        compiler.localRanges = Optimizer.enabled ? new ArrayList<>() : null;
         compiler.function = newFunction();
         current = compiler;
+        lastGlobal = -1;
 
         if(type != TYPE_SCRIPT){
             current.function.name = copyString(parser.previous.literal);
@@ -258,6 +322,10 @@ public class Compiler {
 
         local.depth = 0;
         local.isCaptured = false;
+        local.numeric = false;
+        local.hoisted = false;
+        local.initStart = 0;
+        local.start = 0;
         if (type != TYPE_FUNCTION) {
             local.name = new Token(TOKEN_IDENTIFIER, -1, 4, -1, "this");
         } else {
@@ -268,13 +336,15 @@ public class Compiler {
     static ObjFunction endCompiler() {
         emitReturn();
         ObjFunction function = current.function;
-        if (DEBUG_PRINT_CODE) {
-            if (!parser.hadError) {
-                disassembleChunk(currentChunk(), function.name != null
-                        ? function.name.chars : "<script>");
-            }
+        if (Optimizer.enabled && !parser.hadError) {
+            for (int i = 0; i < current.localCount; i++) recordRange(i);
+            Optimizer.optimize(function, current.localRanges);
+        }
+        if (Diagnostics.printingCode && !parser.hadError) {
+            compiled.add(function);
         }
         current = current.enclosing;
+        lastGlobal = -1;
         return function;
     }
 
@@ -286,6 +356,7 @@ public class Compiler {
         current.scopeDepth--;
 
         while (current.localCount > 0 && current.locals[current.localCount-1].depth > current.scopeDepth) {
+            if (Optimizer.enabled) recordRange(current.localCount - 1);
             if (current.locals[current.localCount - 1].isCaptured) {
                 emitByte(OP_CLOSE_UPVALUE);
             } else {
@@ -344,14 +415,16 @@ public class Compiler {
         if(compiler.enclosing == null) return -1;
 
         int local = resolveLocal(compiler.enclosing, name);
+        if (local != -1 && compiler.enclosing.locals[local].hoisted) return -1; // Still the global in here.
         if(local != -1){
             compiler.enclosing.locals[local].isCaptured = true;
+            if (compiler.enclosing.locals[local].numeric) keepBoxed(compiler.enclosing.locals[local]);
             return addUpvalue(compiler, (int)local, true);
         }
 
         int upvalue = resolveUpvalue(compiler.enclosing, name);
         if(upvalue != -1){
-            return addUpvalue(compiler, (int)upvalue, true);
+            return addUpvalue(compiler, (int)upvalue, false);
         }
 
         return -1;
@@ -366,6 +439,9 @@ public class Compiler {
         local.name = name;
         local.depth = -1; // if depth set -1 then variable not init.
         local.isCaptured = false;
+        local.numeric = false;
+        local.hoisted = false;
+        local.initStart = currentChunk().count;
     }
 
     static void declareVariable(){
@@ -397,6 +473,7 @@ public class Compiler {
     static void markInitialized(){
         if(current.scopeDepth == 0) return;
         current.locals[current.localCount-1].depth = current.scopeDepth;
+        current.locals[current.localCount-1].start = currentChunk().count;
     }
 
     static void defineVariable(int global) {
@@ -428,15 +505,22 @@ public class Compiler {
 
         emitByte(OP_POP);
         parsePrecedence(PREC_AND);
+        box(0);
 
         patchJump(endJump);
     }
 
     static void binary(boolean canAssign) {
         TokenType operatorType = parser.previous.type;
+        Operand left = operand;
+        int leftLiteral = literalOffset;
         ParseRule rule = getRule(operatorType);
         parsePrecedence(getPrecedenceWithNumber(rule.precedence.number + 1));
 
+        if ((left == Operand.RAW || operand == Operand.RAW) && rawBinary(operatorType, left, leftLiteral)) return;
+        if (left == Operand.RAW) emitBytes(OP_BOX, 1);
+        box(0);
+
         switch (operatorType) {
             case TOKEN_BANG_EQUAL:        emitBytes(OP_EQUAL, OP_NOT); break;
             case TOKEN_EQUAL_EQUAL:       emitByte(OP_EQUAL); break;
@@ -453,8 +537,10 @@ public class Compiler {
     }
 
     static void call(boolean canAssign){
+        String callee = lastGlobal == currentChunk().count ? lastGlobalName : null;
         int argCount = argumentList();
-        emitBytes(OP_CALL, argCount);
+        if (callee == null || !inlineCall(callee, argCount)) emitBytes(OP_CALL, argCount);
+        lastCall = currentChunk().count - 2;
     }
 
     static void dot(boolean canAssign){
@@ -466,13 +552,61 @@ public class Compiler {
             emitBytes(OP_SET_PROPERTY, name);
         } else if(match(TOKEN_LEFT_PAREN)){
             int argCount = argumentList();
-            emitBytes(OP_INVOKE, name);
-            emitByte(argCount);
+            if (!inlineInvoke(name, argCount)) {
+                emitBytes(OP_INVOKE, name);
+                emitByte(argCount);
+            }
         } else {
             emitBytes(OP_GET_PROPERTY, name);
         }
     }
 
+    static void list(boolean canAssign) {
+        int itemCount = 0;
+        if (!check(TOKEN_RIGHT_BRACKET)) {
+            do {
+                if (check(TOKEN_RIGHT_BRACKET)) break; // Trailing comma.
+                expression();
+                if (itemCount == 255) {
+                    error("Can't have more than 255 items in a list literal.");
+                }
+                itemCount++;
+            } while (match(TOKEN_COMMA));
+        }
+        consume(TOKEN_RIGHT_BRACKET, "Expect ']' after list items.");
+        emitBytes(OP_BUILD_LIST, itemCount);
+    }
+
+    static void map(boolean canAssign) {
+        int entryCount = 0;
+        if (!check(TOKEN_RIGHT_BRACE)) {
+            do {
+                if (check(TOKEN_RIGHT_BRACE)) break; // Trailing comma.
+                expression();
+                consume(TOKEN_COLON, "Expect ':' after map key.");
+                expression();
+                if (entryCount == 255) {
+                    error("Can't have more than 255 entries in a map literal.");
+                }
+                entryCount++;
+            } while (match(TOKEN_COMMA));
+        }
+        consume(TOKEN_RIGHT_BRACE, "Expect '}' after map entries.");
+        emitBytes(OP_BUILD_MAP, entryCount);
+    }
+
+    static void subscript(boolean canAssign) {
+        expression();
+        consume(TOKEN_RIGHT_BRACKET, "Expect ']' after index.");
+
+        if (canAssign && match(TOKEN_EQUAL)) {
+            expression();
+            emitByte(OP_SET_INDEX);
+        } else {
+            emitByte(OP_GET_INDEX);
+        }
+    }
+
     static void literal(boolean canAssign) {
         switch (parser.previous.type) {
             case TOKEN_FALSE: emitByte(OP_FALSE); break;
@@ -483,13 +617,14 @@ public class Compiler {
     }
 
     static void grouping(boolean canAssign) {
-        expression();
+        parsePrecedence(PREC_ASSIGNMENT);
         consume(TOKEN_RIGHT_PAREN, "Expect ')' after expression.");
     }
 
     static void number(boolean canAssign) {
-        double value = Double.parseDouble(parser.previous.literal);
-        emitConstant(new Value.DoubleValue(value));
+        emitBytes(OP_CONSTANT.opcode, numberConstant(parser.previous.number));
+        operand = Operand.LITERAL;
+        literalOffset = currentChunk().count - 2;
     }
 
     static void or_(boolean canAssign){
@@ -500,6 +635,7 @@ public class Compiler {
         emitByte(OP_POP);
 
         parsePrecedence(PREC_OR);
+        box(0);
         patchJump(endJump);
     }
 
@@ -511,6 +647,14 @@ public class Compiler {
     static void namedVariable(Token name, boolean canAssign){
         OpCode getOp, setOp;
         int arg = resolveLocal(current, name);
+        if (arg != -1 && current.locals[arg].numeric) {
+            rawVariable(arg, canAssign);
+            return;
+        }
+        if (arg != -1 && current.locals[arg].hoisted) {
+            hoistedVariable(arg, name, canAssign);
+            return;
+        }
         if (arg != -1) {
             getOp = OP_GET_LOCAL;
             setOp = OP_SET_LOCAL;
@@ -528,6 +672,10 @@ public class Compiler {
             emitBytes(setOp, arg);
         } else{
             emitBytes(getOp, arg);
+            if (getOp == OP_GET_GLOBAL) {
+                lastGlobal = currentChunk().count;
+                lastGlobalName = name.literal;
+            }
         }
     }
 
@@ -573,6 +721,11 @@ public class Compiler {
     static void unary(boolean canAssign) {
         TokenType operatorType = parser.previous.type;
         parsePrecedence(PREC_UNARY);
+        if (operatorType == TOKEN_MINUS && operand == Operand.RAW) {
+            emitByte(OP_NEGATE_RAW);
+            return;
+        }
+        box(0);
 
         switch (operatorType) {
             case TOKEN_BANG: emitByte(OP_NOT); break;
@@ -585,9 +738,12 @@ public class Compiler {
     static {
         rules.put(TOKEN_LEFT_PAREN,       new ParseRule(ParseFn.grouping,       call,                   PREC_CALL));
         rules.put(TOKEN_RIGHT_PAREN,      new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
-        rules.put(TOKEN_LEFT_BRACE,       new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
+        rules.put(TOKEN_LEFT_BRACE,       new ParseRule(ParseFn.map,            NULL_FN,                Precedence.PREC_NONE));
         rules.put(TOKEN_RIGHT_BRACE,      new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
+        rules.put(TOKEN_LEFT_BRACKET,     new ParseRule(ParseFn.list,           subscript,              PREC_CALL));
+        rules.put(TOKEN_RIGHT_BRACKET,    new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
         rules.put(TOKEN_COMMA,            new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
+        rules.put(TOKEN_COLON,            new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
         rules.put(TOKEN_DOT,              new ParseRule(NULL_FN, dot,                PREC_CALL));
         rules.put(TOKEN_MINUS,            new ParseRule(ParseFn.unary,          ParseFn.binary,         Precedence.PREC_TERM));
         rules.put(TOKEN_PLUS,             new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_TERM));
@@ -595,7 +751,7 @@ public class Compiler {
         rules.put(TOKEN_SLASH,            new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_FACTOR));
         rules.put(TOKEN_STAR,             new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_FACTOR));
         rules.put(TOKEN_BANG,             new ParseRule(ParseFn.unary, NULL_FN,                Precedence.PREC_NONE));
-        rules.put(TOKEN_BANG_EQUAL,       new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_NONE));
+        rules.put(TOKEN_BANG_EQUAL,       new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_EQUALITY));
         rules.put(TOKEN_EQUAL,            new ParseRule(NULL_FN, NULL_FN,                Precedence.PREC_NONE));
         rules.put(TOKEN_EQUAL_EQUAL,      new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_EQUALITY));
         rules.put(TOKEN_GREATER,          new ParseRule(NULL_FN,                ParseFn.binary,         Precedence.PREC_COMPARISON));
@@ -634,11 +790,13 @@ public class Compiler {
         }
 
         boolean canAssign = precedence.number <= PREC_ASSIGNMENT.number;
+        operand = Operand.BOXED;
         executePrecedence(prefixRule, null, canAssign);
 
         while (precedence.number <= getRule(parser.current.type).precedence.number) {
             advance();
             ParseFn infixRule = getRule(parser.previous.type).infix;
+            if (infixRule != ParseFn.binary) box(0);
             executePrecedence(infixRule, null, canAssign);
         }
 
@@ -657,6 +815,7 @@ public class Compiler {
 
     static void expression() {
         parsePrecedence(PREC_ASSIGNMENT);
+        box(0);
     }
 
     static void block() {
@@ -667,7 +826,7 @@ public class Compiler {
         consume(TOKEN_RIGHT_BRACE, "Expect '}' after block.");
     }
 
-    static void function(FunctionType type){
+    static ObjFunction function(FunctionType type){
         CompilerCompiler compiler = new CompilerCompiler();
         initCompiler(compiler, type);
         beginScope();
@@ -688,12 +847,21 @@ public class Compiler {
         block();
 
         ObjFunction function = endCompiler();
+        if (function.upvalueCount == 0) {
+            push(OBJ_VAL(function));
+            function.closure = newClosure(function);
+            pop();
+            emitConstant(OBJ_VAL(function));
+            return function;
+        }
+
         emitBytes(OP_CLOSURE, makeConstant(OBJ_VAL(function)));
 
         for(int i = 0; i < function.upvalueCount; i++){
             emitByte(compiler.upvalues[i].isLocal ? 1 : 0);
             emitByte(compiler.upvalues[i].index);
         }
+        return function;
     }
 
     static void method(){
@@ -704,7 +872,8 @@ public class Compiler {
         if (parser.previous.length == 4 && parser.previous.literal.equals("init")) {
             type = TYPE_INITIALIZER;
         }
-        function(type);
+        ObjFunction function = function(type);
+        if (Inliner.enabled && type == TYPE_METHOD) Inliner.defineMethod(function.name.chars, function);
 
         emitBytes(OP_METHOD, constant);
     }
@@ -759,7 +928,8 @@ public class Compiler {
     static void funDeclaration(){
         int global = parseVariable("Expect function name.");
         markInitialized();
-        function(TYPE_FUNCTION);
+        ObjFunction function = function(TYPE_FUNCTION);
+        if (Inliner.enabled && current.scopeDepth == 0) Inliner.defineFunction(function.name.chars, function);
         defineVariable(global);
     }
 
@@ -768,7 +938,15 @@ public class Compiler {
         int global = parseVariable("Expect variable name.");
 
         if (match(TOKEN_EQUAL)) {
-            expression();
+            parsePrecedence(PREC_ASSIGNMENT);
+            Local local = current.scopeDepth > 0 ? current.locals[current.localCount - 1] : null;
+            if (local != null && numericLocals && operand != Operand.BOXED
+                    && !boxedLocals.contains(local.name.start)) {
+                unbox(operand, literalOffset);
+                local.numeric = true;
+            } else {
+                box(0);
+            }
         } else {
             emitByte(OP_NIL);
         }
@@ -779,12 +957,13 @@ public class Compiler {
     }
 
     static void expressionStatement() {
-        expression();
+        parsePrecedence(PREC_ASSIGNMENT); // Popped right away, a raw result needs no box.
         consume(TOKEN_SEMICOLON, "Expect ';' after expression.");
         emitByte(OP_POP);
     }
 
     static void forStatement() {
+        List<String> globals = hoistGlobals ? loopGlobals() : List.of();
         beginScope();
         consume(TOKEN_LEFT_PAREN, "Expect '(' after 'for'.");
         if(match(TOKEN_SEMICOLON)){
@@ -794,6 +973,7 @@ public class Compiler {
         } else{
             expressionStatement();
         }
+        hoist(globals);
 
         int loopStart = currentChunk().count;
         int exitJump = -1;
@@ -807,7 +987,7 @@ public class Compiler {
         if(!match(TOKEN_RIGHT_PAREN)){
             int bodyJump = emitJump(OP_JUMP);
             int incrementStart = currentChunk().count;
-            expression();
+            parsePrecedence(PREC_ASSIGNMENT);
             emitByte(OP_POP);
             consume(TOKEN_RIGHT_PAREN, "Expect ')' after for clauses.");
             emitLoop(loopStart);
@@ -861,13 +1041,22 @@ public class Compiler {
                 error("Can't return a value from an initializer.");
             }
 
+            lastCall = -1;
             expression();
             consume(TOKEN_SEMICOLON, "Expect ';' after return value.");
+            if (lastCall != -1 && lastCall == currentChunk().count - 2) {
+                currentChunk().code.set(lastCall, OP_TAIL_CALL.opcode);
+            }
             emitByte(OP_RETURN);
         }
     }
 
     static void whileStatement() {
+        List<String> globals = hoistGlobals ? loopGlobals() : List.of();
+        if (!globals.isEmpty()) {
+            beginScope();
+            hoist(globals);
+        }
         int loopStart = currentChunk().count;
 
         consume(TOKEN_LEFT_PAREN, "Expect '(' after 'while'.");
@@ -881,6 +1070,7 @@ public class Compiler {
 
         patchJump(exitJump);
         emitByte(OP_POP);
+        if (!globals.isEmpty()) endScope();
     }
 
     static void synchronize() {
@@ -941,7 +1131,24 @@ public class Compiler {
     }
 
     static ObjFunction compile(String source) {
+        boxedLocals.clear();
+        ObjFunction function;
+        do {
+            recompile = false;
+            compiled.clear();
+            function = compilePass(source);
+        } while (function != null && recompile);
+
+        for (ObjFunction code : compiled) {
+            Diagnostics.disassembleFunction(code);
+        }
+        compiled.clear();
+        return function;
+    }
+
+    static ObjFunction compilePass(String source) {
         initScanner(source);
+        Inliner.reset();
         CompilerCompiler compiler = new CompilerCompiler();
         initCompiler(compiler, TYPE_SCRIPT);
 
@@ -967,6 +1174,202 @@ public class Compiler {
     }
 
     //======================================Advanced functions==========================================================
+    // The call of the global callee, see Inliner; false when OP_CALL is still to be emitted.
+    static boolean inlineCall(String callee, int argCount) {
+        if (!Inliner.enabled || parser.hadError) return false;
+        return Inliner.inlineCall(currentChunk(), current.function.arity, callee, argCount, parser.previous.line);
+    }
+
+    // The same for an invoke of the method in constant name.
+    static boolean inlineInvoke(int name, int argCount) {
+        if (!Inliner.enabled || parser.hadError) return false;
+        String method = AS_STRING(currentChunk().constants.values.get(name)).chars;
+        return Inliner.inlineInvoke(currentChunk(), current.function.arity, name, method, argCount,
+                parser.previous.line);
+    }
+
+    // Turns a raw number depth entries below the top of the stack into a Value, the result is BOXED either way.
+    private static void box(int depth) {
+        if (operand == Operand.RAW) emitBytes(OP_BOX, depth);
+        operand = Operand.BOXED;
+    }
+
+    private static void unbox(Operand operand, int offset) {
+        if (operand == Operand.LITERAL) currentChunk().code.set(offset, OP_CONSTANT_RAW.opcode);
+    }
+
+    // A binary operator with a raw operand : the other one is unboxed, with the operator's type check in OP_UNBOX
+    // when it is a Value, and the raw form is emitted. == and != accept any Value, so they stay generic then.
+    private static boolean rawBinary(TokenType operatorType, Operand left, int leftLiteral) {
+        Operand right = operand;
+        boolean equality = operatorType == TOKEN_EQUAL_EQUAL || operatorType == TOKEN_BANG_EQUAL;
+        if (equality && (left == Operand.BOXED || right == Operand.BOXED)) return false;
+
+        unbox(left, leftLiteral);
+        unbox(right, literalOffset);
+        if (left == Operand.BOXED) emitBytes(OP_UNBOX, 1);
+        if (right == Operand.BOXED) emitBytes(OP_UNBOX, 0);
+
+        operand = Operand.BOXED;
+        switch (operatorType) {
+            case TOKEN_BANG_EQUAL:        emitBytes(OP_EQUAL_RAW, OP_NOT); break;
+            case TOKEN_EQUAL_EQUAL:       emitByte(OP_EQUAL_RAW); break;
+            case TOKEN_GREATER:           emitByte(OP_GREATER_RAW); break;
+            case TOKEN_GREATER_EQUAL:     emitBytes(OP_LESS_RAW, OP_NOT); break;
+            case TOKEN_LESS:              emitByte(OP_LESS_RAW); break;
+            case TOKEN_LESS_EQUAL:        emitBytes(OP_GREATER_RAW, OP_NOT); break;
+            case TOKEN_PLUS:              emitByte(OP_ADD_RAW); operand = Operand.RAW; break;
+            case TOKEN_MINUS:             emitByte(OP_SUBTRACT_RAW); operand = Operand.RAW; break;
+            case TOKEN_STAR:              emitByte(OP_MULTIPLY_RAW); operand = Operand.RAW; break;
+            case TOKEN_SLASH:             emitByte(OP_DIVIDE_RAW); operand = Operand.RAW; break;
+            default: return true; // Unreachable.
+        }
+        return true;
+    }
+
+    private static void rawVariable(int slot, boolean canAssign) {
+        if (canAssign && match(TOKEN_EQUAL)) {
+            parsePrecedence(PREC_ASSIGNMENT);
+            if (operand == Operand.BOXED) keepBoxed(current.locals[slot]);
+            unbox(operand, literalOffset);
+            emitBytes(OP_SET_LOCAL_RAW, slot);
+        } else {
+            emitBytes(OP_GET_LOCAL_RAW, slot);
+        }
+        operand = Operand.RAW;
+    }
+
+    // Reads go through the hidden local, stores still go to the global and so invalidate every hoisted copy. Both
+    // reuse the name constant of the OP_HOIST at initStart.
+    private static void hoistedVariable(int slot, Token name, boolean canAssign) {
+        int global = currentChunk().code.get(current.locals[slot].initStart + 1);
+        if (canAssign && match(TOKEN_EQUAL)) {
+            expression();
+            emitBytes(OP_SET_GLOBAL, global);
+        } else {
+            emitBytes(OP_GET_HOISTED, slot);
+            emitByte(global);
+            lastGlobal = currentChunk().count;
+            lastGlobalName = name.literal;
+        }
+    }
+
+    // Names of the globals a loop reads and does not assign, from the tokens between the '(' in parser.current and
+    // the end of its body. Only a statement body up to its first ';' is looked at, a name missed there stays an
+    // OP_GET_GLOBAL. The scanner is put back where it was.
+    private static List<String> loopGlobals() {
+        int start = Scanner.start, position = Scanner.current, line = Scanner.line;
+        Set<String> names = new LinkedHashSet<>();
+        Set<String> declared = new HashSet<>(); // Or assigned.
+        TokenType previous = TOKEN_LEFT_PAREN;
+        String name = null;
+        int parens = 1, braces = 0;
+        boolean body = false;
+        for (; ; ) {
+            Token token = sckanToken();
+            if (token.type == TOKEN_EOF || token.type == TOKEN_ERROR) break;
+            if (token.type == TOKEN_EQUAL && name != null) declared.add(name);
+            name = null;
+            if (token.type == TOKEN_IDENTIFIER) {
+                if (previous == TOKEN_VAR || previous == TOKEN_FUN || previous == TOKEN_CLASS) {
+                    declared.add(token.literal);
+                } else if (previous != TOKEN_DOT) {
+                    names.add(token.literal);
+                    name = token.literal;
+                }
+            }
+            if (token.type == TOKEN_LEFT_PAREN) parens++;
+            if (token.type == TOKEN_RIGHT_PAREN) parens--;
+            if (token.type == TOKEN_LEFT_BRACE) braces++;
+            if (token.type == TOKEN_RIGHT_BRACE) braces--;
+            previous = token.type;
+            if (parens < 0 || braces < 0) break;
+            if (parens != 0 || braces != 0) continue;
+            if (body && (token.type == TOKEN_SEMICOLON || token.type == TOKEN_RIGHT_BRACE)) break;
+            body = true;
+        }
+        Scanner.start = start;
+        Scanner.current = position;
+        Scanner.line = line;
+
+        List<String> globals = new ArrayList<>();
+        for (String global : names) {
+            if (globals.size() == MAX_HOISTED) break;
+            if (!declared.contains(global) && isGlobal(global)) globals.add(global);
+        }
+        if (current.localCount + globals.size() > UINT8_COUNT / 2) return List.of();
+        return globals;
+    }
+
+    // No local of the function or of an enclosing one is called name. A hoisted copy in an enclosing function
+    // does not count, the global is what this function reads.
+    private static boolean isGlobal(String name) {
+        for (CompilerCompiler compiler = current; compiler != null; compiler = compiler.enclosing) {
+            for (int i = compiler.localCount - 1; i >= 0; i--) {
+                Local local = compiler.locals[i];
+                if (!name.equals(local.name.literal)) continue;
+                if (compiler == current || !local.hoisted) return false;
+            }
+        }
+        return true;
+    }
+
+    // One hidden local per global, initialized in the current scope before the loop.
+    private static void hoist(List<String> globals) {
+        for (String name : globals) {
+            Token token = syntheticToken(name);
+            addLocal(token);
+            current.locals[current.localCount - 1].hoisted = true;
+            emitBytes(OP_HOIST, identifierConstant(token));
+            markInitialized();
+        }
+    }
+
+    // The speculation on local failed, compile() starts over with it boxed.
+    private static void keepBoxed(Local local) {
+        boxedLocals.add(local.name.start);
+        recompile = true;
+    }
+
+    // The local at slot goes out of scope here, its POP or OP_CLOSE_UPVALUE is not part of the range.
+    private static void recordRange(int slot) {
+        Local local = current.locals[slot];
+        Optimizer.LocalRange range = new Optimizer.LocalRange();
+        range.slot = slot;
+        range.initStart = local.initStart;
+        range.start = local.start;
+        range.end = currentChunk().count;
+        range.captured = local.isCaptured;
+        current.localRanges.add(range);
+    }
+
+    private static void rememberNumber(CompilerCompiler compiler, long bits, int constant) {
+        if (compiler.numberKeys == null || (compiler.numberCount + 1) * 2 > compiler.numberKeys.length) {
+            long[] keys = compiler.numberKeys;
+            int[] slots = compiler.numberSlots;
+            compiler.numberKeys = new long[keys == null ? 16 : keys.length * 2];
+            compiler.numberSlots = new int[compiler.numberKeys.length];
+            for (int i = 0; keys != null && i < keys.length; i++) {
+                if (slots[i] != 0) insertNumber(compiler, keys[i], slots[i]);
+            }
+        }
+        insertNumber(compiler, bits, constant + 1);
+        compiler.numberCount++;
+    }
+
+    private static void insertNumber(CompilerCompiler compiler, long bits, int slot) {
+        int mask = compiler.numberKeys.length - 1;
+        int i = hashBits(bits) & mask;
+        while (compiler.numberSlots[i] != 0) i = (i + 1) & mask;
+        compiler.numberKeys[i] = bits;
+        compiler.numberSlots[i] = slot;
+    }
+
+    private static int hashBits(long bits) {
+        int hash = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
     public static Precedence getPrecedenceWithNumber(int i) {
         return Arrays.asList(Precedence.values()).stream().filter(p -> p.number > i).findFirst().get();
     }
@@ -1028,6 +1431,15 @@ public class Compiler {
             case literal:
                 literal(canAssign);
                 break;
+            case list:
+                list(canAssign);
+                break;
+            case map:
+                map(canAssign);
+                break;
+            case subscript:
+                subscript(canAssign);
+                break;
             // In this place NULL_FN - Unreachable.
             default:
                 throw new RuntimeException("Add rule to switch : " + rule.name());
@@ -0,0 +1,90 @@
+package clox;
+
+import clox.utility.OutputSink;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+import static clox.Debug.disassembleInstruction;
+import static clox.ObjectLox.*;
+import static clox.Value.printValue;
+import static clox.vm.*;
+
+// Debug output selected at runtime : disassembly of every compiled function, an execution trace and a GC log.
+// Each channel writes to a buffered sink of its own and is off by default. The trace has its own interpreter
+// loop, selected by vm.run() like the profilers, so with every channel off nothing is formatted or printed.
+public class Diagnostics {
+    static boolean printingCode;
+    static boolean tracing;
+    static boolean loggingGc;
+
+    static OutputSink codeLog;
+    static OutputSink traceLog;
+    static OutputSink gcLog;
+
+    public static void enablePrintCode(OutputSink sink) {
+        codeLog = sink;
+        printingCode = true;
+    }
+
+    public static void enableTrace(OutputSink sink) {
+        traceLog = sink;
+        tracing = true;
+    }
+
+    public static void enableGcLog(OutputSink sink) {
+        gcLog = sink;
+        loggingGc = true;
+    }
+
+    public static void disableAll() {
+        flush();
+        printingCode = false;
+        tracing = false;
+        loggingGc = false;
+        codeLog = null;
+        traceLog = null;
+        gcLog = null;
+    }
+
+    // A sink on the given file, or on stderr when path is null, so the channels stay out of the script output.
+    public static OutputSink open(String path) throws FileNotFoundException {
+        return new OutputSink(path == null ? new FileOutputStream(FileDescriptor.err) : new FileOutputStream(path));
+    }
+
+    // Called at the end of every interpret(), from freeVM() and before a runtime error is reported.
+    static void flush() {
+        if (codeLog != null) codeLog.flush();
+        if (traceLog != null) traceLog.flush();
+        if (gcLog != null) gcLog.flush();
+    }
+
+    static InterpretResult run() {
+        for (; ; ) {
+            traceInstruction();
+            InterpretResult result = step();
+            if (result != null) return result;
+        }
+    }
+
+    static void disassembleFunction(ObjFunction function) {
+        Debug.disassembleChunk(codeLog, function.chunk, function.name != null ? function.name.chars : "<script>");
+    }
+
+    //======================================Advanced functions==========================================================
+    // Only the live part of the stack, slots at and above stackTop are leftovers of earlier calls. Raw numbers
+    // of the numeric locals pass print from vm.numbers.
+    private static void traceInstruction() {
+        CallFrame frame = vm.frames[vm.frameCount - 1];
+        traceLog.print("          ");
+        for (int slot = 0; slot < vm.stackTop; slot++) {
+            traceLog.print("[ ");
+            if (vm.stack[slot] == null) traceLog.print(vm.numbers[slot]);
+            else printValue(traceLog, vm.stack[slot]);
+            traceLog.print(" ]");
+        }
+        traceLog.println();
+        disassembleInstruction(traceLog, frame.closure.function.chunk, frame.ip);
+    }
+}
@@ -0,0 +1,374 @@
+package clox;
+
+import clox.Chunk.OpCode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static clox.Chunk.*;
+import static clox.Chunk.OpCode.*;
+import static clox.ObjectLox.ObjFunction;
+import static clox.Value.OBJ_VAL;
+
+// Inlining, selected with --inline. The compiler tells the inliner about every global function and method it
+// finishes; a later call of a global by that name, or an invoke of a method by that name, gets the callee's
+// bytecode copied in after a guard :
+//   OP_CALL_GUARD fn argc     jumps to the call unless the callee is fn, or OP_INVOKE_GUARD for an invoke
+//   body of fn                locals moved up to where the callee sits, OP_RETURN becomes OP_INLINE_RETURN
+//   OP_CALL argc              the call as it would have been compiled
+// The body runs in the caller's frame, no frame is pushed. Only small leaf functions are copied : no calls, no
+// closures, no upvalues. Runtime errors inside the body still list the callee, see Chunk.InlinedCall.
+public class Inliner {
+    static boolean enabled;
+
+    // Largest chunk copied in, in bytes.
+    static final int MAX_BYTES = 64;
+
+    private static final OpCode[] OPCODES = OpCode.values();
+
+    // Functions compiled so far by name; a method name compiled twice is left out.
+    private static final Map<String, ObjFunction> functions = new HashMap<>();
+    private static final Map<String, ObjFunction> methods = new HashMap<>();
+    private static final Set<String> ambiguous = new HashSet<>();
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    // Called when the compiler starts over.
+    static void reset() {
+        functions.clear();
+        methods.clear();
+        ambiguous.clear();
+    }
+
+    static void defineFunction(String name, ObjFunction function) {
+        functions.put(name, function);
+    }
+
+    static void defineMethod(String name, ObjFunction function) {
+        if (methods.containsKey(name)) ambiguous.add(name);
+        methods.put(name, function);
+    }
+
+    // Emits an inlined call of the global name, whose arguments were just compiled. false when nothing was
+    // emitted and the caller emits OP_CALL itself. arity is the one of the function being compiled.
+    static boolean inlineCall(Chunk chunk, int arity, String name, int argCount, int line) {
+        ObjFunction callee = functions.get(name);
+        int slot = calleeSlot(chunk, arity, callee, argCount);
+        if (slot == -1) return false;
+
+        int function = addConstant(chunk, OBJ_VAL(callee));
+        int guard = chunk.count;
+        writeBytes(chunk, line, OP_CALL_GUARD.opcode, function, argCount, 0xff, 0xff);
+        int fallback = splice(chunk, callee, slot, function, line);
+        patch(chunk, guard + 3, fallback);
+        writeBytes(chunk, line, OP_CALL.opcode, argCount);
+        patchReturns(chunk, guard + 5, fallback, chunk.count);
+        return true;
+    }
+
+    // The same for an invoke of the method name, whose constant is nameConstant.
+    static boolean inlineInvoke(Chunk chunk, int arity, int nameConstant, String name, int argCount, int line) {
+        if (ambiguous.contains(name)) return false;
+        ObjFunction callee = methods.get(name);
+        int slot = calleeSlot(chunk, arity, callee, argCount);
+        if (slot == -1) return false;
+
+        int function = addConstant(chunk, OBJ_VAL(callee));
+        int guard = chunk.count;
+        writeBytes(chunk, line, OP_INVOKE_GUARD.opcode, nameConstant, function, argCount, 0xff, 0xff);
+        int fallback = splice(chunk, callee, slot, function, line);
+        patch(chunk, guard + 4, fallback);
+        writeBytes(chunk, line, OP_INVOKE.opcode, nameConstant, argCount);
+        patchReturns(chunk, guard + 6, fallback, chunk.count);
+        return true;
+    }
+
+    //======================================Advanced functions==========================================================
+    // Slot of the callee in the caller's frame, or -1 when callee can not be inlined there.
+    private static int calleeSlot(Chunk chunk, int arity, ObjFunction callee, int argCount) {
+        if (callee == null || callee.arity != argCount || callee.upvalueCount != 0) return -1;
+        Chunk body = callee.chunk;
+        if (body.count > MAX_BYTES) return -1;
+
+        int depth = stackDepth(chunk, arity + 1);
+        if (depth == -1) return -1;
+        int slot = depth - 1 - argCount;
+        if (slot < 0) return -1;
+        Set<Integer> constants = new HashSet<>();
+        for (int offset = 0; offset < body.count; offset += instructionLength(body, offset)) {
+            OpCode op = OPCODES[body.code.get(offset)];
+            if (!copied(op)) return -1;
+            if (isLocal(op) && slot + body.code.get(offset + 1) > Main.UINT8_MAX) return -1;
+            if (hasConstant(op)) constants.add(body.code.get(offset + 1));
+        }
+        // The callee itself and the constants of the body.
+        if (chunk.constants.count + 1 + constants.size() > Main.UINT8_COUNT) return -1;
+        return slot;
+    }
+
+    // Copies the reachable instructions of callee to the end of chunk and returns the offset after them.
+    private static int splice(Chunk chunk, ObjFunction callee, int slot, int function, int line) {
+        Chunk body = callee.chunk;
+        boolean[] reached = reachable(body);
+        int[] moved = new int[body.count + 1];
+        int start = chunk.count;
+        int end = start;
+        for (int offset = 0; offset < body.count; offset += instructionLength(body, offset)) {
+            moved[offset] = end;
+            if (!reached[offset]) continue;
+            end += body.code.get(offset) == OP_RETURN.opcode ? 4 : instructionLength(body, offset);
+        }
+
+        Map<Integer, Integer> constants = new HashMap<>();
+        for (int offset = 0; offset < body.count; offset += instructionLength(body, offset)) {
+            if (!reached[offset]) continue;
+            OpCode op = OPCODES[body.code.get(offset)];
+            int bodyLine = body.lines.get(offset);
+            int operand = offset + 1 < body.count ? body.code.get(offset + 1) : 0;
+            if (op == OP_RETURN) {
+                writeBytes(chunk, bodyLine, OP_INLINE_RETURN.opcode, slot, 0xff, 0xff);
+            } else if (op == OP_JUMP || op == OP_JUMP_IF_FALSE || op == OP_LOOP) {
+                int from = moved[offset] + 3;
+                int jump = Math.abs(moved[jumpTarget(body, offset)] - from);
+                writeBytes(chunk, bodyLine, op.opcode, (jump >> 8) & 0xff, jump & 0xff);
+            } else if (isLocal(op)) {
+                writeBytes(chunk, bodyLine, op.opcode, operand + slot);
+            } else if (hasConstant(op)) {
+                Integer constant = constants.get(operand);
+                if (constant == null) {
+                    constant = addConstant(chunk, body.constants.values.get(operand));
+                    constants.put(operand, constant);
+                }
+                writeBytes(chunk, bodyLine, op.opcode, constant);
+            } else {
+                for (int i = 0; i < instructionLength(body, offset); i++) {
+                    writeChunk(chunk, body.code.get(offset + i), bodyLine);
+                }
+            }
+        }
+
+        InlinedCall call = new InlinedCall();
+        call.start = start;
+        call.end = end;
+        call.function = function;
+        call.line = line;
+        if (chunk.inlined == null) chunk.inlined = new ArrayList<>();
+        chunk.inlined.add(call);
+        return end;
+    }
+
+    // Points the OP_INLINE_RETURNs in [start, end) at target.
+    private static void patchReturns(Chunk chunk, int start, int end, int target) {
+        for (int offset = start; offset < end; offset += instructionLength(chunk, offset)) {
+            if (chunk.code.get(offset) == OP_INLINE_RETURN.opcode) patch(chunk, offset + 2, target);
+        }
+    }
+
+    // Writes the forward jump whose two bytes are at operand.
+    private static void patch(Chunk chunk, int operand, int target) {
+        int jump = target - operand - 2;
+        chunk.code.set(operand, (jump >> 8) & 0xff);
+        chunk.code.set(operand + 1, jump & 0xff);
+    }
+
+    private static void writeBytes(Chunk chunk, int line, int... bytes) {
+        for (int value : bytes) writeChunk(chunk, value, line);
+    }
+
+    // Instructions some path reaches, the increment of a for loop only through its OP_LOOP.
+    private static boolean[] reachable(Chunk chunk) {
+        boolean[] reached = new boolean[chunk.count + 1];
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int offset = work.pop();
+            if (offset >= chunk.count || reached[offset]) continue;
+            reached[offset] = true;
+            OpCode op = OPCODES[chunk.code.get(offset)];
+            if (op == OP_JUMP || op == OP_JUMP_IF_FALSE || op == OP_LOOP) work.push(jumpTarget(chunk, offset));
+            if (op != OP_JUMP && op != OP_LOOP && op != OP_RETURN) work.push(offset + instructionLength(chunk, offset));
+        }
+        return reached;
+    }
+
+    // Values on the stack of the frame at the end of chunk, start at its beginning, or -1 when that is not known.
+    // Forward jumps already patched give the depth at their target. Code that follows an unconditional jump and
+    // is no target, the increment of a for loop, starts with the depth before the jump; after a return the
+    // depth is the one without the returned value.
+    static int stackDepth(Chunk chunk, int start) {
+        int[] at = new int[chunk.count + 1]; // Depth + 1 at the target of a jump, 0 when unknown.
+        int depth = start;
+        boolean assumed = false;
+        for (int offset = 0; offset < chunk.count; offset += instructionLength(chunk, offset)) {
+            if (at[offset] != 0) {
+                if (!assumed && at[offset] - 1 != depth) return -1;
+                depth = at[offset] - 1;
+            }
+            assumed = false;
+
+            OpCode op = OPCODES[chunk.code.get(offset)];
+            if (op == OP_RETURN || op == OP_INLINE_RETURN) {
+                if (op == OP_INLINE_RETURN && !mark(at, jumpTarget(chunk, offset), chunk.code.get(offset + 1) + 1)) {
+                    return -1;
+                }
+                depth--;
+                assumed = true;
+                continue;
+            }
+            depth += stackEffect(chunk, offset);
+            if (depth < 0) return -1;
+            if (op == OP_JUMP || op == OP_JUMP_IF_FALSE || op == OP_CALL_GUARD || op == OP_INVOKE_GUARD) {
+                if (!mark(at, jumpTarget(chunk, offset), depth)) return -1;
+            }
+            assumed = op == OP_JUMP || op == OP_LOOP;
+        }
+        if (at[chunk.count] != 0) {
+            if (!assumed && at[chunk.count] - 1 != depth) return -1;
+            depth = at[chunk.count] - 1;
+        }
+        return depth;
+    }
+
+    // Records the depth at target; jumps not patched yet go past the end and are left out.
+    private static boolean mark(int[] at, int target, int depth) {
+        if (target >= at.length) return true;
+        if (at[target] != 0 && at[target] - 1 != depth) return false;
+        at[target] = depth + 1;
+        return true;
+    }
+
+    // Values the instruction at offset pushes, less those it pops.
+    private static int stackEffect(Chunk chunk, int offset) {
+        switch (OPCODES[chunk.code.get(offset)]) {
+            case OP_CONSTANT:
+            case OP_NIL:
+            case OP_TRUE:
+            case OP_FALSE:
+            case OP_GET_LOCAL:
+            case OP_GET_UPVALUE:
+            case OP_GET_GLOBAL:
+            case OP_CLOSURE:
+            case OP_CLASS:
+            case OP_CONSTANT_RAW:
+            case OP_GET_LOCAL_RAW:
+            case OP_DUP:
+            case OP_HOIST:
+            case OP_GET_HOISTED:
+                return 1;
+            case OP_POP:
+            case OP_DEFINE_GLOBAL:
+            case OP_SET_PROPERTY:
+            case OP_GET_SUPER:
+            case OP_GET_INDEX:
+            case OP_EQUAL:
+            case OP_GREATER:
+            case OP_LESS:
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+            case OP_PRINT:
+            case OP_CLOSE_UPVALUE:
+            case OP_INHERIT:
+            case OP_METHOD:
+            case OP_ADD_NUM:
+            case OP_ADD_STR:
+            case OP_SUBTRACT_NUM:
+            case OP_MULTIPLY_NUM:
+            case OP_DIVIDE_NUM:
+            case OP_GREATER_NUM:
+            case OP_LESS_NUM:
+            case OP_ADD_RAW:
+            case OP_SUBTRACT_RAW:
+            case OP_MULTIPLY_RAW:
+            case OP_DIVIDE_RAW:
+            case OP_EQUAL_RAW:
+            case OP_GREATER_RAW:
+            case OP_LESS_RAW:
+                return -1;
+            case OP_SET_INDEX:
+                return -2;
+            case OP_BUILD_LIST:
+                return 1 - chunk.code.get(offset + 1);
+            case OP_BUILD_MAP:
+                return 1 - 2 * chunk.code.get(offset + 1);
+            case OP_CALL:
+            case OP_TAIL_CALL:
+                return -chunk.code.get(offset + 1);
+            case OP_INVOKE:
+                return -chunk.code.get(offset + 2);
+            case OP_SUPER_INVOKE:
+                return -chunk.code.get(offset + 2) - 1;
+            default:
+                return 0;
+        }
+    }
+
+    // Instructions a body may contain : no calls, closures, upvalues or classes.
+    private static boolean copied(OpCode op) {
+        switch (op) {
+            case OP_CONSTANT:
+            case OP_NIL:
+            case OP_TRUE:
+            case OP_FALSE:
+            case OP_POP:
+            case OP_GET_LOCAL:
+            case OP_SET_LOCAL:
+            case OP_GET_GLOBAL:
+            case OP_SET_GLOBAL:
+            case OP_GET_PROPERTY:
+            case OP_SET_PROPERTY:
+            case OP_BUILD_LIST:
+            case OP_BUILD_MAP:
+            case OP_GET_INDEX:
+            case OP_SET_INDEX:
+            case OP_EQUAL:
+            case OP_GREATER:
+            case OP_LESS:
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+            case OP_NOT:
+            case OP_NEGATE:
+            case OP_PRINT:
+            case OP_JUMP:
+            case OP_JUMP_IF_FALSE:
+            case OP_LOOP:
+            case OP_RETURN:
+            case OP_CONSTANT_RAW:
+            case OP_GET_LOCAL_RAW:
+            case OP_SET_LOCAL_RAW:
+            case OP_ADD_RAW:
+            case OP_SUBTRACT_RAW:
+            case OP_MULTIPLY_RAW:
+            case OP_DIVIDE_RAW:
+            case OP_NEGATE_RAW:
+            case OP_EQUAL_RAW:
+            case OP_GREATER_RAW:
+            case OP_LESS_RAW:
+            case OP_BOX:
+            case OP_UNBOX:
+            case OP_DUP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isLocal(OpCode op) {
+        return op == OP_GET_LOCAL || op == OP_SET_LOCAL || op == OP_GET_LOCAL_RAW || op == OP_SET_LOCAL_RAW;
+    }
+
+    private static boolean hasConstant(OpCode op) {
+        return op == OP_CONSTANT || op == OP_CONSTANT_RAW || op == OP_GET_GLOBAL || op == OP_SET_GLOBAL
+                || op == OP_GET_PROPERTY || op == OP_SET_PROPERTY;
+    }
+}
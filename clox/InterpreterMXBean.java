@@ -0,0 +1,34 @@
+package clox;
+
+// Live interpreter metrics, registered by initVM() as clox:type=Interpreter,id=N.
+public interface InterpreterMXBean {
+    long getInstructionsExecuted();
+
+    long getCalls();
+
+    int getFrameDepth();
+
+    int getBytesAllocated();
+
+    int getNextGC();
+
+    long getObjectsAllocated();
+
+    int getPeakBytesAllocated();
+
+    long getGcCount();
+
+    long getGcPauseTotalMillis();
+
+    int getInternedStrings();
+
+    int getInternTableCapacity();
+
+    double getInternTableLoadFactor();
+
+    int getGlobalCount();
+
+    long getCompileCount();
+
+    long getCompileTotalMillis();
+}
@@ -0,0 +1,119 @@
+package clox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// The counters are plain fields of vm written by the interpreter thread alone, so the hot path pays one
+// unshared increment. A JMX client reads them without synchronization and may see slightly stale values.
+// Registration is opt-in because starting the platform MBean server adds noticeably to startup time.
+public class InterpreterMetrics implements InterpreterMXBean {
+    static boolean enabled;
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static ObjectName registered;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("clox:type=Interpreter,id=" + ids.incrementAndGet());
+            server.registerMBean(new InterpreterMetrics(), name);
+            registered = name;
+        } catch (JMException e) {
+            System.err.println("Could not register interpreter MBean: " + e.getMessage());
+        }
+    }
+
+    static void unregister() {
+        if (registered == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException e) {
+            System.err.println("Could not unregister interpreter MBean: " + e.getMessage());
+        }
+        registered = null;
+    }
+
+    @Override
+    public long getInstructionsExecuted() {
+        return vm.instructions;
+    }
+
+    @Override
+    public long getCalls() {
+        return vm.calls;
+    }
+
+    @Override
+    public int getFrameDepth() {
+        return vm.frameCount;
+    }
+
+    @Override
+    public int getBytesAllocated() {
+        return vm.bytesAllocated;
+    }
+
+    @Override
+    public int getNextGC() {
+        return vm.nextGC;
+    }
+
+    @Override
+    public long getObjectsAllocated() {
+        return vm.objectsAllocated;
+    }
+
+    @Override
+    public int getPeakBytesAllocated() {
+        return vm.peakBytesAllocated;
+    }
+
+    @Override
+    public long getGcCount() {
+        return vm.gcCount;
+    }
+
+    @Override
+    public long getGcPauseTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(vm.gcNanos);
+    }
+
+    @Override
+    public int getInternedStrings() {
+        return vm.strings.count;
+    }
+
+    @Override
+    public int getInternTableCapacity() {
+        return vm.strings.capacity;
+    }
+
+    @Override
+    public double getInternTableLoadFactor() {
+        Table strings = vm.strings;
+        return strings.capacity == 0 ? 0 : (double) strings.count / strings.capacity;
+    }
+
+    @Override
+    public int getGlobalCount() {
+        return vm.globals.count;
+    }
+
+    @Override
+    public long getCompileCount() {
+        return vm.compileCount;
+    }
+
+    @Override
+    public long getCompileTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(vm.compileNanos);
+    }
+}
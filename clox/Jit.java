@@ -0,0 +1,680 @@
+package clox;
+
+import clox.Chunk.OpCode;
+import clox.utility.ClassFileWriter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+import java.util.TreeSet;
+
+import static clox.Chunk.OpCode.*;
+import static clox.Chunk.instructionLength;
+import static clox.Chunk.jumpTarget;
+import static clox.ObjectLox.*;
+import static clox.Table.*;
+import static clox.Value.*;
+import static clox.utility.Utility.stdout;
+import static clox.vm.*;
+import static clox.vm.InterpretResult.*;
+
+// Tiered execution, selected with --jit[=THRESHOLD]. run() interprets like vm.run() and counts calls and loop
+// back edges per function; at the threshold the function's chunk becomes the execute() method of a hidden class
+// in which every instruction is a short template over the VM stack and Lox jumps are JVM branches. Compiled code
+// keeps frames, stack and ip exactly as the interpreter does, so it can be entered at the function start, at a
+// loop header (on-stack replacement) and after a call, and left after any instruction. Arithmetic assumes
+// numbers; when that fails the site is marked polymorphic, the code is dropped and the interpreter carries on.
+// It saves the dispatch only: bench/lox programs made of calls and arithmetic gain 10 to 40 percent over the
+// bytecode loop, those spending their time in table lookups (equality, zoo, properties) gain nothing, and
+// properties, whose many methods stay below the threshold and are interpreted one vm.step() at a time, loses
+// about 20 percent. --engine=tree is faster than both on every one of them.
+public class Jit {
+    static boolean enabled;
+    static int threshold = 1000;
+    public static long compiled;
+    public static long deoptimized;
+
+    // Status of compiled code and its helpers : NEXT goes on with the following instruction, RESUME returns to
+    // run() because the current frame or its code changed, NOT_ENTERED means frame.ip is no entry point.
+    static final int NEXT = 0;
+    static final int RESUME = 1;
+    static final int ERROR = 2;
+    static final int DONE = 3;
+    static final int NOT_ENTERED = 4;
+    // Compiled callees run on the Java stack up to this depth, deeper calls go back to run().
+    static final int MAX_DEPTH = 64;
+    static int depth;
+
+    private static final String CODE = "clox/Jit$Code";
+    private static final String JIT = "clox/Jit";
+    private static final String FRAME = "Lclox/vm$CallFrame;";
+    private static final String VALUE = "Lclox/Value;";
+    // Local of execute() counting the instructions run since it last added them to vm.instructions, which it does
+    // on every return and loop back edge.
+    private static final int COUNT = 2;
+
+    // Superclass of the generated classes.
+    public abstract static class Code {
+        Value[] constants;
+
+        public abstract int execute(CallFrame frame);
+    }
+
+    public static void enable(int hotness) {
+        enabled = true;
+        threshold = hotness;
+    }
+
+    static InterpretResult run() {
+        for (; ; ) {
+            CallFrame frame = vm.frames[vm.frameCount - 1];
+            ObjFunction function = frame.closure.function;
+            if (function.jitCode != null) {
+                int status = function.jitCode.execute(frame);
+                if (status == RESUME) continue;
+                if (status == ERROR) return INTERPRET_RUNTIME_ERROR;
+                if (status == DONE) return INTERPRET_OK;
+            } else if (!function.jitFailed && (frame.ip == 0 || function.chunk.code.get(frame.ip) == OP_LOOP.opcode)
+                    && ++function.hotness >= threshold) {
+                compile(function);
+                continue;
+            }
+            InterpretResult result = vm.step();
+            if (result != null) return result;
+        }
+    }
+
+    // Helpers called by the compiled code, one per instruction or slow path.
+    static void nil() {
+        push(NIL_VAL());
+    }
+
+    static void bool(boolean value) {
+        push(BOOL_VAL(value));
+    }
+
+    static void pop() {
+        vm.stackTop--;
+    }
+
+    static void getLocal(CallFrame frame, int slot) {
+        push(vm.stack[frame.slots + slot]);
+    }
+
+    static void setLocal(CallFrame frame, int slot) {
+        vm.stack[frame.slots + slot] = vm.stack[vm.stackTop - 1];
+    }
+
+    static void getUpvalue(CallFrame frame, int slot) {
+        push(vm.getUpvalue(frame.closure.upvalues[slot]));
+    }
+
+    static void setUpvalue(CallFrame frame, int slot) {
+        vm.setUpvalue(frame.closure.upvalues[slot], vm.stack[vm.stackTop - 1]);
+    }
+
+    static int getGlobal(CallFrame frame, int offset, Value name) {
+        Value value = new NilValue();
+        if (!tableGet(vm.globals, AS_STRING(name), value)) return step(frame, offset);
+        push(value);
+        return NEXT;
+    }
+
+    static int getHoisted(CallFrame frame, int offset, int slot, Value name) {
+        int index = frame.slots + slot;
+        if (vm.numbers[index] != vm.globalVersion) return step(frame, offset);
+        push(vm.stack[index]);
+        return NEXT;
+    }
+
+    static void hoist(Value name) {
+        vm.hoist(AS_STRING(name));
+    }
+
+    static void defineGlobal(Value name) {
+        tableSet(vm.globals, AS_STRING(name), peek(0));
+        if (AS_STRING(name).hoisted) vm.globalVersion++;
+        vm.stackTop--;
+    }
+
+    static int setGlobal(CallFrame frame, int offset, Value name) {
+        if (AS_STRING(name).hoisted) vm.globalVersion++;
+        if (tableSet(vm.globals, AS_STRING(name), peek(0))) {
+            tableDelete(vm.globals, AS_STRING(name));
+            frame.ip = offset + 2;
+            runtimeError("Undefined variable '%s'.", AS_STRING(name).chars);
+            return ERROR;
+        }
+        return NEXT;
+    }
+
+    static int getProperty(CallFrame frame, int offset, Value name) {
+        Value receiver = vm.stack[vm.stackTop - 1];
+        if (!IS_INSTANCE(receiver)) return step(frame, offset);
+        Value value = new NilValue();
+        if (!tableGet(AS_INSTANCE(receiver).fields, AS_STRING(name), value)) return step(frame, offset);
+        vm.stack[vm.stackTop - 1] = value;
+        return NEXT;
+    }
+
+    static int setProperty(CallFrame frame, int offset, Value name) {
+        Value receiver = vm.stack[vm.stackTop - 2];
+        if (!IS_INSTANCE(receiver)) return step(frame, offset);
+        Value value = vm.stack[vm.stackTop - 1];
+        tableSet(AS_INSTANCE(receiver).fields, AS_STRING(name), value);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = value;
+        return NEXT;
+    }
+
+    static void equal() {
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = BOOL_VAL(valuesEqual(vm.stack[vm.stackTop - 1], vm.stack[vm.stackTop]));
+    }
+
+    static int add(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) + AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int subtract(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) - AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int multiply(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) * AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int divide(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) / AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int greater(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new BoolValue(AS_NUMBER(a) > AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int less(CallFrame frame, int offset) {
+        Value b = vm.stack[vm.stackTop - 1];
+        Value a = vm.stack[vm.stackTop - 2];
+        if (!IS_NUMBER(a) || !IS_NUMBER(b)) return deoptimize(frame, offset);
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new BoolValue(AS_NUMBER(a) < AS_NUMBER(b));
+        return NEXT;
+    }
+
+    static int negate(CallFrame frame, int offset) {
+        if (!IS_NUMBER(peek(0))) return step(frame, offset);
+        vm.stack[vm.stackTop - 1] = NUMBER_VAL(-AS_NUMBER(peek(0)));
+        return NEXT;
+    }
+
+    static void not() {
+        vm.stack[vm.stackTop - 1] = BOOL_VAL(isFalsey(vm.stack[vm.stackTop - 1]));
+    }
+
+    static void print() {
+        printValue(vm.pop());
+        stdout.println();
+    }
+
+    static boolean isFalseOnTop() {
+        return isFalsey(vm.stack[vm.stackTop - 1]);
+    }
+
+    static int call(CallFrame frame, int offset, int argCount) {
+        frame.ip = offset + 2;
+        int frameCount = vm.frameCount;
+        if (!callValue(peek(argCount), argCount)) return ERROR;
+        return enter(frameCount);
+    }
+
+    static int invoke(CallFrame frame, int offset, Value method, int argCount) {
+        frame.ip = offset + 3;
+        int frameCount = vm.frameCount;
+        if (!vm.invoke(AS_STRING(method), argCount)) return ERROR;
+        return enter(frameCount);
+    }
+
+    // After a call pushed a frame : a compiled callee is executed right away, and once it has returned the caller
+    // goes on with NEXT. Anything else the callee ends with is passed up to run().
+    static int enter(int frameCount) {
+        if (vm.frameCount == frameCount) return NEXT;
+        CallFrame callee = vm.frames[vm.frameCount - 1];
+        Code code = callee.closure.function.jitCode;
+        if (code == null || depth == MAX_DEPTH) return RESUME;
+        depth++;
+        int status = code.execute(callee);
+        depth--;
+        return status == RESUME && vm.frameCount == frameCount ? NEXT : status;
+    }
+
+    static boolean callGuard(Value function, int argCount) {
+        return inlinedCall(AS_FUNCTION(function), argCount);
+    }
+
+    static boolean invokeGuard(Value method, Value function, int argCount) {
+        return inlinedInvoke(AS_STRING(method), AS_FUNCTION(function), argCount);
+    }
+
+    static int ret(CallFrame frame) {
+        Value result = vm.pop();
+        closeUpvalues(frame.slots);
+        vm.frameCount--;
+        if (vm.frameCount == 0) {
+            vm.pop();
+            return DONE;
+        }
+        vm.stackTop = frame.slots;
+        push(result);
+        return RESUME;
+    }
+
+    static void getLocalRaw(CallFrame frame, int slot) {
+        pushRaw(vm.numbers[frame.slots + slot]);
+    }
+
+    static void setLocalRaw(CallFrame frame, int slot) {
+        vm.numbers[frame.slots + slot] = vm.numbers[vm.stackTop - 1];
+    }
+
+    static void constantRaw(Value value) {
+        pushRaw(AS_NUMBER(value));
+    }
+
+    static void addRaw() {
+        vm.stackTop--;
+        vm.numbers[vm.stackTop - 1] += vm.numbers[vm.stackTop];
+    }
+
+    static void subtractRaw() {
+        vm.stackTop--;
+        vm.numbers[vm.stackTop - 1] -= vm.numbers[vm.stackTop];
+    }
+
+    static void multiplyRaw() {
+        vm.stackTop--;
+        vm.numbers[vm.stackTop - 1] *= vm.numbers[vm.stackTop];
+    }
+
+    static void divideRaw() {
+        vm.stackTop--;
+        vm.numbers[vm.stackTop - 1] /= vm.numbers[vm.stackTop];
+    }
+
+    static void greaterRaw() {
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] > vm.numbers[vm.stackTop]);
+    }
+
+    static void lessRaw() {
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] < vm.numbers[vm.stackTop]);
+    }
+
+    static void equalRaw() {
+        vm.stackTop--;
+        vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] == vm.numbers[vm.stackTop]);
+    }
+
+    static void negateRaw() {
+        vm.numbers[vm.stackTop - 1] = -vm.numbers[vm.stackTop - 1];
+    }
+
+    static void box(int depth) {
+        int index = vm.stackTop - 1 - depth;
+        vm.stack[index] = new DoubleValue(vm.numbers[index]);
+    }
+
+    // Any other instruction, and the slow paths of the ones above, run through vm.step().
+    static int step(CallFrame frame, int offset) {
+        frame.ip = offset;
+        int frameCount = vm.frameCount;
+        int end = offset + instructionLength(frame.closure.function.chunk, offset);
+        vm.instructions--; // Counted by the compiled code already.
+        InterpretResult result = vm.step();
+        if (result != null) return result == INTERPRET_OK ? DONE : ERROR;
+        return vm.frameCount == frameCount && frame.ip == end ? NEXT : RESUME;
+    }
+
+    // A type guard failed at offset : the site stays generic from now on, the code is dropped and the interpreter
+    // executes the instruction. The function compiles again once it is hot again.
+    static int deoptimize(CallFrame frame, int offset) {
+        ObjFunction function = frame.closure.function;
+        if (function.chunk.polymorphic == null) function.chunk.polymorphic = new BitSet();
+        function.chunk.polymorphic.set(offset);
+        function.jitCode = null;
+        function.hotness = 0;
+        frame.ip = offset;
+        vm.instructions--; // The interpreter executes and counts it again.
+        deoptimized++;
+        return RESUME;
+    }
+
+    //======================================Advanced functions==========================================================
+    private static void compile(ObjFunction function) {
+        try {
+            Code code = generate(function.chunk);
+            if (code == null) {
+                function.jitFailed = true;
+                return;
+            }
+            function.jitCode = code;
+            compiled++;
+        } catch (Throwable e) {
+            function.jitFailed = true;
+        }
+    }
+
+    private static Code generate(Chunk chunk) throws Throwable {
+        byte[] bytes = translate("clox/JitCode", chunk);
+        if (bytes == null) return null;
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        Code compiledCode = (Code) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                .invoke();
+        compiledCode.constants = chunk.constants.values.toArray(new Value[0]);
+        return compiledCode;
+    }
+
+    // The class file of a Code subclass executing chunk, null when its branches do not fit. Aot writes the same
+    // classes into a JAR under their own names.
+    static byte[] translate(String name, Chunk chunk) {
+        ClassFileWriter writer = new ClassFileWriter(name, CODE);
+        ClassFileWriter.Code init = writer.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1);
+        init.op(0x2a); // aload_0
+        init.opShort(0xb7, writer.methodRef(CODE, "<init>", "()V")); // invokespecial
+        init.op(0xb1); // return
+        init.finish();
+
+        ClassFileWriter.Code code = writer.method(ClassFileWriter.ACC_PUBLIC, "execute", "(" + FRAME + ")I", 6, 3);
+        code.op(0x03); // iconst_0
+        code.op(0x36, COUNT); // istore
+        int[] labels = new int[chunk.count];
+        TreeSet<Integer> entries = new TreeSet<>();
+        entries.add(0);
+        for (int offset = 0; offset < chunk.count; offset += instructionLength(chunk, offset)) {
+            labels[offset] = code.newLabel();
+            OpCode op = OpCode.values()[chunk.code.get(offset)];
+            if (op == OP_LOOP) entries.add(jumpTarget(chunk, offset));
+            if (op == OP_CALL || op == OP_TAIL_CALL || op == OP_INVOKE || op == OP_SUPER_INVOKE) {
+                entries.add(offset + instructionLength(chunk, offset));
+            }
+        }
+        entries.removeIf(entry -> entry >= chunk.count);
+
+        int notEntered = code.newLabel();
+        int[] keys = entries.stream().mapToInt(Integer::intValue).toArray();
+        int[] targets = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) targets[i] = labels[keys[i]];
+        code.op(0x2b); // aload_1
+        code.opShort(0xb4, writer.fieldRef("clox/vm$CallFrame", "ip", "I")); // getfield
+        code.lookupswitch(keys, targets, notEntered);
+        code.mark(notEntered);
+        code.pushInt(NOT_ENTERED);
+        code.op(0xac); // ireturn
+
+        for (int offset = 0; offset < chunk.count; offset += instructionLength(chunk, offset)) {
+            code.mark(labels[offset]);
+            code.op(0x84, COUNT); // iinc, one more instruction executed
+            code.op(1);
+            emitInstruction(writer, code, chunk, offset, labels);
+        }
+        return code.finish() ? writer.toByteArray() : null;
+    }
+
+    private static void emitInstruction(ClassFileWriter writer, ClassFileWriter.Code code, Chunk chunk, int offset,
+                                        int[] labels) {
+        OpCode op = OpCode.values()[chunk.code.get(offset)];
+        int operand = offset + 1 < chunk.count ? chunk.code.get(offset + 1) : 0;
+        boolean generic = chunk.polymorphic != null && chunk.polymorphic.get(offset);
+        switch (op) {
+            case OP_CONSTANT:
+                loadConstant(writer, code, operand);
+                helper(writer, code, "clox/vm", "push", "(" + VALUE + ")V");
+                return;
+            case OP_NIL:
+                helper(writer, code, "nil", "()V");
+                return;
+            case OP_TRUE:
+            case OP_FALSE:
+                code.pushInt(op == OP_TRUE ? 1 : 0);
+                helper(writer, code, "bool", "(Z)V");
+                return;
+            case OP_POP:
+                helper(writer, code, "pop", "()V");
+                return;
+            case OP_GET_LOCAL:
+            case OP_SET_LOCAL:
+            case OP_GET_UPVALUE:
+            case OP_SET_UPVALUE:
+            case OP_GET_LOCAL_RAW:
+            case OP_SET_LOCAL_RAW: {
+                String name = op == OP_GET_LOCAL ? "getLocal" : op == OP_SET_LOCAL ? "setLocal"
+                        : op == OP_GET_UPVALUE ? "getUpvalue" : op == OP_SET_UPVALUE ? "setUpvalue"
+                        : op == OP_GET_LOCAL_RAW ? "getLocalRaw" : "setLocalRaw";
+                code.op(0x2b); // aload_1
+                code.pushInt(operand);
+                helper(writer, code, name, "(" + FRAME + "I)V");
+                return;
+            }
+            case OP_GET_GLOBAL:
+            case OP_SET_GLOBAL:
+            case OP_GET_PROPERTY:
+            case OP_SET_PROPERTY: {
+                String name = op == OP_GET_GLOBAL ? "getGlobal" : op == OP_SET_GLOBAL ? "setGlobal"
+                        : op == OP_GET_PROPERTY ? "getProperty" : "setProperty";
+                code.op(0x2b);
+                code.pushInt(offset);
+                loadConstant(writer, code, operand);
+                helper(writer, code, name, "(" + FRAME + "I" + VALUE + ")I");
+                returnUnlessNext(writer, code);
+                return;
+            }
+            case OP_GET_HOISTED:
+                code.op(0x2b);
+                code.pushInt(offset);
+                code.pushInt(operand);
+                loadConstant(writer, code, chunk.code.get(offset + 2));
+                helper(writer, code, "getHoisted", "(" + FRAME + "II" + VALUE + ")I");
+                returnUnlessNext(writer, code);
+                return;
+            case OP_HOIST:
+                loadConstant(writer, code, operand);
+                helper(writer, code, "hoist", "(" + VALUE + ")V");
+                return;
+            case OP_DEFINE_GLOBAL:
+                loadConstant(writer, code, operand);
+                helper(writer, code, "defineGlobal", "(" + VALUE + ")V");
+                return;
+            case OP_CONSTANT_RAW:
+                loadConstant(writer, code, operand);
+                helper(writer, code, "constantRaw", "(" + VALUE + ")V");
+                return;
+            case OP_EQUAL:
+            case OP_NOT:
+            case OP_PRINT:
+            case OP_ADD_RAW:
+            case OP_SUBTRACT_RAW:
+            case OP_MULTIPLY_RAW:
+            case OP_DIVIDE_RAW:
+            case OP_GREATER_RAW:
+            case OP_LESS_RAW:
+            case OP_EQUAL_RAW:
+            case OP_NEGATE_RAW:
+                helper(writer, code, simpleHelper(op), "()V");
+                return;
+            case OP_BOX:
+                code.pushInt(operand);
+                helper(writer, code, "box", "(I)V");
+                return;
+            case OP_ADD:
+            case OP_ADD_NUM:
+            case OP_SUBTRACT:
+            case OP_SUBTRACT_NUM:
+            case OP_MULTIPLY:
+            case OP_MULTIPLY_NUM:
+            case OP_DIVIDE:
+            case OP_DIVIDE_NUM:
+            case OP_GREATER:
+            case OP_GREATER_NUM:
+            case OP_LESS:
+            case OP_LESS_NUM:
+            case OP_NEGATE:
+                if (generic) break;
+                code.op(0x2b);
+                code.pushInt(offset);
+                helper(writer, code, arithmeticHelper(op), "(" + FRAME + "I)I");
+                returnUnlessNext(writer, code);
+                return;
+            case OP_JUMP:
+                code.branch(0xa7, labels[jumpTarget(chunk, offset)]); // goto
+                return;
+            case OP_LOOP:
+                flushCount(writer, code);
+                code.op(0x03);
+                code.op(0x36, COUNT);
+                code.branch(0xa7, labels[jumpTarget(chunk, offset)]);
+                return;
+            case OP_JUMP_IF_FALSE:
+                helper(writer, code, "isFalseOnTop", "()Z");
+                code.branch(0x9a, labels[jumpTarget(chunk, offset)]); // ifne
+                return;
+            case OP_CALL:
+                code.op(0x2b);
+                code.pushInt(offset);
+                code.pushInt(operand);
+                helper(writer, code, "call", "(" + FRAME + "II)I");
+                returnUnlessNext(writer, code);
+                return;
+            case OP_INVOKE:
+                code.op(0x2b);
+                code.pushInt(offset);
+                loadConstant(writer, code, operand);
+                code.pushInt(chunk.code.get(offset + 2));
+                helper(writer, code, "invoke", "(" + FRAME + "I" + VALUE + "I)I");
+                returnUnlessNext(writer, code);
+                return;
+            case OP_CALL_GUARD:
+                loadConstant(writer, code, operand);
+                code.pushInt(chunk.code.get(offset + 2));
+                helper(writer, code, "callGuard", "(" + VALUE + "I)Z");
+                code.branch(0x99, labels[jumpTarget(chunk, offset)]); // ifeq
+                return;
+            case OP_INVOKE_GUARD:
+                loadConstant(writer, code, operand);
+                loadConstant(writer, code, chunk.code.get(offset + 2));
+                code.pushInt(chunk.code.get(offset + 3));
+                helper(writer, code, "invokeGuard", "(" + VALUE + VALUE + "I)Z");
+                code.branch(0x99, labels[jumpTarget(chunk, offset)]);
+                return;
+            case OP_INLINE_RETURN:
+                code.op(0x2b);
+                code.pushInt(operand);
+                helper(writer, code, "clox/vm", "inlineReturn", "(" + FRAME + "I)V");
+                code.branch(0xa7, labels[jumpTarget(chunk, offset)]);
+                return;
+            case OP_RETURN:
+                code.op(0x2b);
+                helper(writer, code, "ret", "(" + FRAME + ")I");
+                flushCount(writer, code);
+                code.op(0xac); // ireturn
+                return;
+            default:
+                break;
+        }
+        // Everything else, including the polymorphic sites, goes through the interpreter.
+        code.op(0x2b);
+        code.pushInt(offset);
+        helper(writer, code, "step", "(" + FRAME + "I)I");
+        returnUnlessNext(writer, code);
+    }
+
+    private static String simpleHelper(OpCode op) {
+        switch (op) {
+            case OP_EQUAL:          return "equal";
+            case OP_NOT:            return "not";
+            case OP_PRINT:          return "print";
+            case OP_ADD_RAW:        return "addRaw";
+            case OP_SUBTRACT_RAW:   return "subtractRaw";
+            case OP_MULTIPLY_RAW:   return "multiplyRaw";
+            case OP_DIVIDE_RAW:     return "divideRaw";
+            case OP_GREATER_RAW:    return "greaterRaw";
+            case OP_LESS_RAW:       return "lessRaw";
+            case OP_EQUAL_RAW:      return "equalRaw";
+            default:                return "negateRaw";
+        }
+    }
+
+    private static String arithmeticHelper(OpCode op) {
+        switch (op) {
+            case OP_ADD: case OP_ADD_NUM:                 return "add";
+            case OP_SUBTRACT: case OP_SUBTRACT_NUM:       return "subtract";
+            case OP_MULTIPLY: case OP_MULTIPLY_NUM:       return "multiply";
+            case OP_DIVIDE: case OP_DIVIDE_NUM:           return "divide";
+            case OP_GREATER: case OP_GREATER_NUM:         return "greater";
+            case OP_LESS: case OP_LESS_NUM:               return "less";
+            default:                                      return "negate";
+        }
+    }
+
+    private static void loadConstant(ClassFileWriter writer, ClassFileWriter.Code code, int index) {
+        code.op(0x2a); // aload_0
+        code.opShort(0xb4, writer.fieldRef(CODE, "constants", "[" + VALUE)); // getfield
+        code.pushInt(index);
+        code.op(0x32); // aaload
+    }
+
+    private static void helper(ClassFileWriter writer, ClassFileWriter.Code code, String name, String descriptor) {
+        helper(writer, code, JIT, name, descriptor);
+    }
+
+    private static void helper(ClassFileWriter writer, ClassFileWriter.Code code, String owner, String name,
+                               String descriptor) {
+        code.opShort(0xb8, writer.methodRef(owner, name, descriptor)); // invokestatic
+    }
+
+    // The status on the stack : NEXT falls through to the following instruction, anything else is returned.
+    private static void returnUnlessNext(ClassFileWriter writer, ClassFileWriter.Code code) {
+        int next = code.newLabel();
+        code.op(0x59); // dup
+        code.branch(0x99, next); // ifeq
+        flushCount(writer, code);
+        code.op(0xac); // ireturn
+        code.mark(next);
+        code.op(0x57); // pop
+    }
+
+    // vm.instructions += count
+    private static void flushCount(ClassFileWriter writer, ClassFileWriter.Code code) {
+        int instructions = writer.fieldRef("clox/vm", "instructions", "J");
+        code.opShort(0xb2, instructions); // getstatic
+        code.op(0x15, COUNT); // iload
+        code.op(0x85); // i2l
+        code.op(0x61); // ladd
+        code.opShort(0xb3, instructions); // putstatic
+    }
+
+}
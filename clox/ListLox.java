@@ -0,0 +1,90 @@
+package clox;
+
+import java.util.Arrays;
+
+import static clox.Memory.*;
+import static clox.ObjectLox.*;
+import static clox.Value.*;
+
+// Growable list storage. A list keeps its elements in a double[] while it holds only numbers
+// and switches to a Value[] the first time anything else is stored.
+public class ListLox {
+    public static void initList(ObjList list) {
+        list.numbers = new double[0];
+        list.values = null;
+        list.count = 0;
+        list.capacity = 0;
+    }
+
+    public static void freeList(ObjList list) {
+        if (list.values != null) {
+            FREE_ARRAY(list.values, list.capacity);
+        } else {
+            FREE_ARRAY(list.numbers, list.capacity);
+        }
+        initList(list);
+    }
+
+    static void growList(ObjList list, int capacity) {
+        int oldCapacity = list.capacity;
+        list.capacity = capacity;
+        if (list.values != null) {
+            list.values = Arrays.copyOf(GROW_ARRAY(list.values, oldCapacity, capacity), capacity);
+        } else {
+            list.numbers = Arrays.copyOf(GROW_ARRAY(list.numbers, oldCapacity, capacity), capacity);
+        }
+    }
+
+    static void unpackList(ObjList list) {
+        Value[] values = new Value[list.capacity];
+        for (int i = 0; i < list.count; i++) {
+            values[i] = NUMBER_VAL(list.numbers[i]);
+        }
+        list.values = values;
+        list.numbers = null;
+    }
+
+    public static void listAppend(ObjList list, Value value) {
+        if (list.capacity < list.count + 1) {
+            growList(list, GROW_CAPACITY(list.capacity));
+        }
+        listStore(list, list.count++, value);
+    }
+
+    public static Value listGet(ObjList list, int index) {
+        if (list.values != null) return list.values[index];
+        return NUMBER_VAL(list.numbers[index]);
+    }
+
+    public static void listSet(ObjList list, int index, Value value) {
+        listStore(list, index, value);
+    }
+
+    public static Value listPop(ObjList list) {
+        Value value = listGet(list, list.count - 1);
+        list.count--;
+        if (list.values != null) list.values[list.count] = null;
+        return value;
+    }
+
+    // Returns the element position for a Lox index value or -1 when it is not a valid index.
+    public static int listIndex(ObjList list, Value index) {
+        if (!IS_NUMBER(index)) return -1;
+        double number = AS_NUMBER(index);
+        int position = (int) number;
+        if (position != number || position < 0 || position >= list.count) return -1;
+        return position;
+    }
+
+    //======================================Advanced functions==========================================================
+    private static void listStore(ObjList list, int index, Value value) {
+        if (list.values == null) {
+            if (IS_NUMBER(value)) {
+                list.numbers[index] = AS_NUMBER(value);
+                return;
+            }
+            unpackList(list);
+        }
+        list.values[index] = value;
+    }
+}
@@ -0,0 +1,150 @@
+package clox;
+
+import java.util.Arrays;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import static clox.ObjectLox.*;
+import static clox.vm.*;
+
+// Java Flight Recorder events, so Lox compilation, collections and calls show up in the same recording
+// as the JVM's own GC and JIT activity. Disabled events cost a check of isEnabled() or shouldCommit().
+// Lox calls are timed in their own interpreter loop, selected by vm.run() while call events are on, and native
+// calls are only wrapped in events then too, so the other loops never allocate one.
+public class LoxEvents {
+    static boolean timingCalls;
+
+    @Name("clox.Compile")
+    @Label("Lox Compile")
+    @Category("Lox")
+    @StackTrace(false)
+    static class CompileEvent extends Event {
+        @Label("Source Length")
+        @Description("Characters of source code")
+        int sourceLength;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("clox.GarbageCollection")
+    @Label("Lox Garbage Collection")
+    @Category("Lox")
+    @StackTrace(false)
+    static class GcEvent extends Event {
+        @Label("Bytes Before")
+        @DataAmount
+        long bytesBefore;
+
+        @Label("Bytes After")
+        @DataAmount
+        long bytesAfter;
+
+        @Label("Next GC")
+        @DataAmount
+        long nextGC;
+
+        @Label("Mark")
+        @Description("Marking roots and tracing references")
+        @Timespan
+        long markNanos;
+
+        @Label("Remove White Strings")
+        @Timespan
+        long stringsNanos;
+
+        @Label("Sweep")
+        @Timespan
+        long sweepNanos;
+    }
+
+    @Name("clox.Call")
+    @Label("Lox Call")
+    @Category("Lox")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class CallEvent extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+
+        @Label("Depth")
+        int depth;
+    }
+
+    @Name("clox.NativeCall")
+    @Label("Lox Native Call")
+    @Category("Lox")
+    @StackTrace(false)
+    static class NativeCallEvent extends Event {
+        @Label("Native")
+        String name;
+
+        @Label("Arguments")
+        int argCount;
+    }
+
+    public static void enableCallEvents() {
+        timingCalls = true;
+    }
+
+    // Begins an event for every frame pushed and commits it when the frame is popped, comparing the frame
+    // count before and after each instruction. A tail call reuses its frame and so extends the caller's event.
+    static InterpretResult run() {
+        CallEvent[] events = new CallEvent[vm.frames.length];
+        int depth = 0;
+        try {
+            for (; ; ) {
+                if (vm.frameCount > depth) {
+                    if (events.length < vm.frameCount) events = Arrays.copyOf(events, vm.frames.length);
+                    for (; depth < vm.frameCount; depth++) {
+                        CallEvent event = new CallEvent();
+                        event.begin();
+                        events[depth] = event;
+                    }
+                }
+                InterpretResult result = step();
+                for (; depth > vm.frameCount; depth--) commitCall(events, depth - 1);
+                if (result != null) return result;
+            }
+        } finally {
+            for (; depth > 0; depth--) commitCall(events, depth - 1);
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    static Value callNative(NativeCall native_, int argCount) {
+        NativeCallEvent event = new NativeCallEvent();
+        event.begin();
+        Value result = native_.call(vm.stack, vm.stackTop - argCount, argCount);
+        if (event.shouldCommit()) {
+            event.name = native_.name;
+            event.argCount = argCount;
+            event.commit();
+        }
+        return result;
+    }
+
+    private static void commitCall(CallEvent[] events, int depth) {
+        CallEvent event = events[depth];
+        events[depth] = null;
+        event.end();
+        if (!event.shouldCommit()) return;
+
+        CallFrame frame = vm.frames[depth];
+        event.function = Profiler.functionName(frame.closure.function);
+        event.line = Profiler.currentLine(frame);
+        event.depth = depth;
+        event.commit();
+    }
+}
@@ -1,11 +1,13 @@
 package clox;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
+import static clox.ObjectLox.ObjFunction;
 import static clox.ObjectLox.hashString;
 import static clox.vm.InterpretResult;
 import static clox.vm.InterpretResult.INTERPRET_COMPILE_ERROR;
@@ -17,6 +19,13 @@ public class Main {
     public static final int UINT8_COUNT = UINT8_MAX + 1;
     public static final int SIZE_FACTOR = 4;
 
+    private static String profilePath;
+    private static long profileInterval = 1_000;
+    private static int profileTop = 20;
+    private static int allocationTop = -1;
+    private static String jarPath;
+    private static String loopOption; // The option whose instruction loop vm.run() uses, see runLoop().
+
     private static void repl() {
         try {
             while (true) {
@@ -44,21 +53,173 @@ public class Main {
     private static void runFile(String path) {
         String source = readFile(path);
         InterpretResult result = vm.interpret(source);
+        finish();
 
+        if (result != InterpretResult.INTERPRET_OK) vm.freeVM();
         if (result == INTERPRET_COMPILE_ERROR) System.exit(65);
         if (result == INTERPRET_RUNTIME_ERROR) System.exit(70);
     }
 
+    private static void compileFile(String path) {
+        ObjFunction function = vm.compileScript(readFile(path));
+        if (function == null) System.exit(65);
+        try {
+            Aot.writeJar(function, Path.of(jarPath));
+        } catch (IOException e) {
+            System.err.println("Could not write " + jarPath);
+            System.exit(74);
+        }
+    }
+
     public static void main(String[] args) {
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("--")) {
+            if (!parseOption(args[arg++])) usage();
+        }
         vm.initVM();
-        if (args.length == 0) {
+        if (profilePath != null) Profiler.start(profileInterval);
+
+        if (jarPath != null) {
+            if (args.length != arg + 1) usage();
+            compileFile(args[arg]);
+        } else if (args.length == arg) {
             repl();
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (args.length == arg + 1) {
+            runFile(args[arg]);
         } else {
-            System.err.println("Usage: clox [path]");
-            System.exit(64);
+            usage();
         }
         vm.freeVM();
     }
+
+    //======================================Advanced functions==========================================================
+    private static void usage() {
+        System.err.println("Usage: clox [options] [path]");
+        System.err.println("  --max-frames=N            call depth limit");
+        System.err.println("  --profile=FILE            sample Lox stacks, write collapsed stacks to FILE");
+        System.err.println("  --profile-interval=MICROS sampling interval, default 1000");
+        System.err.println("  --profile-top=N           functions listed in the profile report, default 20");
+        System.err.println("  --opcode-stats=FILE       count opcodes, opcode pairs and call sites, write JSON to FILE");
+        System.err.println("  --alloc-sites[=N]         report the top N allocation sites, default 20");
+        System.err.println("  --jmx                     register the clox:type=Interpreter MBean");
+        System.err.println("  --jfr-calls               emit clox.Call and clox.NativeCall flight recorder events");
+        System.err.println("  --engine=bytecode|tree    interpreter loop, tree runs pre-linked nodes per function");
+        System.err.println("  --jit[=N]                 compile functions to JVM bytecode after N calls and loops, default 1000");
+        System.err.println("  --compile-jar=FILE        compile the script into a runnable JAR instead of running it");
+        System.err.println("  --no-quicken              turn off all quickening, + - * / > and < stay generic");
+        System.err.println("  --numeric-locals          keep locals that only hold numbers unboxed");
+        System.err.println("  --optimize                run the optimization passes over every compiled function");
+        System.err.println("  --inline                  copy small functions and methods into their call sites");
+        System.err.println("  --hoist-globals           cache the globals a loop reads in hidden locals");
+        System.err.println("  --print-code[=FILE]       disassemble every compiled function, to stderr by default");
+        System.err.println("  --trace[=FILE]            trace every executed instruction with the stack");
+        System.err.println("  --log-gc[=FILE]           log allocations, marking, frees and collections");
+        System.exit(64);
+    }
+
+    private static void finish() {
+        if (profilePath != null) {
+            Profiler.stop();
+            try {
+                Profiler.writeCollapsed(Path.of(profilePath));
+            } catch (IOException e) {
+                System.err.println("Could not write profile " + profilePath);
+            }
+            Profiler.report(System.err, profileTop);
+        }
+        if (allocationTop >= 0) AllocationProfiler.report(System.err, allocationTop);
+    }
+
+    // The profiler, the statistics, the trace, the call events, the tree engine and the JIT each run the program
+    // through a loop of their own, vm.run() picks one. A second such option would be dropped without a word, so it
+    // is a usage error instead.
+    private static boolean runLoop(String option) {
+        if (loopOption != null && !loopOption.equals(option)) {
+            System.err.println(option + " can not be combined with " + loopOption + ".");
+            return false;
+        }
+        loopOption = option;
+        return true;
+    }
+
+    private static boolean parseOption(String option) {
+        int equals = option.indexOf('=');
+        String name = equals == -1 ? option : option.substring(0, equals);
+        String value = equals == -1 ? null : option.substring(equals + 1);
+        try {
+            switch (name) {
+                case "--max-frames": {
+                    int frames = Integer.parseInt(value);
+                    if (frames < 1) return false;
+                    vm.setFramesMax(frames);
+                    return true;
+                }
+                case "--profile":
+                    profilePath = value;
+                    return value != null && runLoop(name);
+                case "--profile-interval":
+                    profileInterval = Long.parseLong(value);
+                    return true;
+                case "--profile-top":
+                    profileTop = Integer.parseInt(value);
+                    return true;
+                case "--opcode-stats":
+                    if (value == null) return false;
+                    OpcodeStats.enable(Path.of(value));
+                    return runLoop(name);
+                case "--jmx":
+                    InterpreterMetrics.enable();
+                    return value == null;
+                case "--jfr-calls":
+                    LoxEvents.enableCallEvents();
+                    return value == null && runLoop(name);
+                case "--engine":
+                    if ("tree".equals(value)) TreeEngine.enable();
+                    if ("tree".equals(value)) return runLoop(name);
+                    return "bytecode".equals(value);
+                case "--jit":
+                    Jit.enable(value == null ? Jit.threshold : Integer.parseInt(value));
+                    return Jit.threshold > 0 && runLoop(name);
+                case "--compile-jar":
+                    jarPath = value;
+                    return value != null;
+                case "--no-quicken":
+                    vm.quickening = false;
+                    return value == null;
+                case "--numeric-locals":
+                    Compiler.numericLocals = true;
+                    return value == null;
+                case "--optimize":
+                    Optimizer.enable();
+                    return value == null;
+                case "--inline":
+                    Inliner.enable();
+                    return value == null;
+                case "--hoist-globals":
+                    Compiler.hoistGlobals = true;
+                    return value == null;
+                case "--print-code":
+                    Diagnostics.enablePrintCode(Diagnostics.open(value));
+                    return true;
+                case "--trace":
+                    Diagnostics.enableTrace(Diagnostics.open(value));
+                    return runLoop(name);
+                case "--log-gc":
+                    Diagnostics.enableGcLog(Diagnostics.open(value));
+                    return true;
+                case "--alloc-sites":
+                    allocationTop = value == null ? 20 : Integer.parseInt(value);
+                    AllocationProfiler.enable();
+                    return runLoop(name);
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        } catch (FileNotFoundException e) {
+            System.err.println("Could not open " + value);
+            System.exit(74);
+            return false;
+        }
+    }
 }
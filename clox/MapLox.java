@@ -0,0 +1,170 @@
+package clox;
+
+import static clox.Memory.*;
+import static clox.ObjectLox.*;
+import static clox.Table.TABLE_MAX_LOAD;
+import static clox.Value.*;
+
+// Hash map over arbitrary Lox values. Entries live in dense, insertion-ordered arrays and a small
+// open-addressing index of int positions points into them, so probing never touches the entries
+// themselves and iteration is a linear walk. Keys compare like == except that every NaN is the same
+// key, so storing under NaN twice replaces the entry instead of adding one that can never be found.
+public class MapLox {
+    static final int EMPTY = 0;
+    static final int TOMBSTONE = -1;
+
+    public static void initMap(ObjMap map) {
+        map.index = new int[0];
+        map.hashes = new int[0];
+        map.keys = new Value[0];
+        map.values = new Value[0];
+        map.count = 0;
+        map.used = 0;
+        map.capacity = 0;
+    }
+
+    public static void freeMap(ObjMap map) {
+        FREE_ARRAY(map.index, map.capacity);
+        FREE_ARRAY(map.keys, map.capacity);
+        FREE_ARRAY(map.values, map.capacity);
+        initMap(map);
+    }
+
+    public static int hashValue(Value value) {
+        switch (value.type) {
+            case VAL_BOOL:   return AS_BOOL(value) ? 1231 : 1237;
+            case VAL_NIL:    return 0x2545F491;
+            case VAL_NUMBER: {
+                double number = AS_NUMBER(value);
+                if (number == 0) number = 0; // -0 and 0 are the same key.
+                long bits = Double.doubleToLongBits(number);
+                int hash = (int) (bits ^ (bits >>> 32));
+                return hash ^ (hash >>> 16);
+            }
+            case VAL_OBJ: {
+                Obj object = AS_OBJ(value);
+                if (object.type == ObjType.OBJ_STRING) return ((ObjString) object).hash;
+                return System.identityHashCode(object);
+            }
+            default:         throw new RuntimeException("Unreachable"); // Unreachable.
+        }
+    }
+
+    public static boolean mapGet(ObjMap map, Value key, Value value) {
+        if (map.count == 0) return false;
+
+        int slot = findSlot(map, key, hashValue(key));
+        if (map.index[slot] <= EMPTY) return false;
+
+        value.set(map.values[map.index[slot] - 1]);
+        return true;
+    }
+
+    public static boolean mapSet(ObjMap map, Value key, Value value) {
+        if (map.used + 1 > map.capacity * TABLE_MAX_LOAD) {
+            int capacity = map.count + 1 > map.capacity * TABLE_MAX_LOAD / 2
+                    ? GROW_CAPACITY(map.capacity) : map.capacity;
+            adjustCapacity(map, capacity);
+        }
+
+        int hash = hashValue(key);
+        int slot = findSlot(map, key, hash);
+        if (map.index[slot] > EMPTY) {
+            map.values[map.index[slot] - 1] = value;
+            return false;
+        }
+
+        int entry = map.used++;
+        map.hashes[entry] = hash;
+        map.keys[entry] = key;
+        map.values[entry] = value;
+        map.index[insertSlot(map, hash)] = entry + 1;
+        map.count++;
+        return true;
+    }
+
+    public static boolean mapDelete(ObjMap map, Value key) {
+        if (map.count == 0) return false;
+
+        int slot = findSlot(map, key, hashValue(key));
+        if (map.index[slot] <= EMPTY) return false;
+
+        int entry = map.index[slot] - 1;
+        map.keys[entry] = null;
+        map.values[entry] = null;
+        map.index[slot] = TOMBSTONE;
+        map.count--;
+        return true;
+    }
+
+    // Collects keys or values in insertion order.
+    public static void mapEntries(ObjMap map, ObjList into, boolean keys) {
+        for (int i = 0; i < map.used; i++) {
+            if (map.keys[i] == null) continue;
+            ListLox.listAppend(into, keys ? map.keys[i] : map.values[i]);
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    // Returns the slot holding key, or the empty slot that ends its probe sequence.
+    private static int findSlot(ObjMap map, Value key, int hash) {
+        int mask = map.capacity - 1;
+        int slot = hash & mask;
+        for (;;) {
+            int entry = map.index[slot];
+            if (entry == EMPTY) return slot;
+            if (entry != TOMBSTONE) {
+                int position = entry - 1;
+                if (map.hashes[position] == hash && keysEqual(map.keys[position], key)) return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean keysEqual(Value a, Value b) {
+        if (IS_NUMBER(a) && IS_NUMBER(b)) {
+            double x = AS_NUMBER(a);
+            double y = AS_NUMBER(b);
+            return x == y || (x != x && y != y);
+        }
+        return valuesEqual(a, b);
+    }
+
+    private static int insertSlot(ObjMap map, int hash) {
+        int mask = map.capacity - 1;
+        int slot = hash & mask;
+        while (map.index[slot] > EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static void adjustCapacity(ObjMap map, int capacity) {
+        // Account for the new storage while the map is still intact, a collection may run here.
+        GROW_ARRAY(map.index, map.capacity, capacity);
+        GROW_ARRAY(map.keys, map.capacity, capacity);
+        GROW_ARRAY(map.values, map.capacity, capacity);
+
+        int[] oldHashes = map.hashes;
+        Value[] oldKeys = map.keys;
+        Value[] oldValues = map.values;
+        int oldUsed = map.used;
+
+        map.index = new int[capacity];
+        map.hashes = new int[capacity];
+        map.keys = new Value[capacity];
+        map.values = new Value[capacity];
+        map.capacity = capacity;
+
+        int entry = 0;
+        for (int i = 0; i < oldUsed; i++) {
+            if (oldKeys[i] == null) continue;
+            map.hashes[entry] = oldHashes[i];
+            map.keys[entry] = oldKeys[i];
+            map.values[entry] = oldValues[i];
+            map.index[insertSlot(map, oldHashes[i])] = entry + 1;
+            entry++;
+        }
+        map.used = entry;
+    }
+}
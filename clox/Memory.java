@@ -1,21 +1,21 @@
 package clox;
 
 import static clox.Chunk.freeChunk;
-import static clox.Common.DEBUG_LOG_GC;
 import static clox.Common.DEBUG_STRESS_GC;
 import static clox.Compiler.markCompilerRoots;
+import static clox.ListLox.freeList;
+import static clox.MapLox.freeMap;
 import static clox.Main.SIZE_FACTOR;
 import static clox.ObjectLox.*;
 import static clox.Table.*;
 import static clox.Value.*;
-import static clox.utility.Utility.printf;
 import static java.lang.System.exit;
 
 public class Memory {
     public static final int GC_HEAP_GROW_FACTOR = 2;
 
-    public static<T> T ALLOCATE(T obj) {
-        return reallocate(obj, 0, SIZE_FACTOR);
+    public static<T> T ALLOCATE(T obj, int count) {
+        return reallocate(obj, 0, SIZE_FACTOR * count);
     }
 
     public static<T> T FREE(T pointer) {
@@ -37,6 +37,7 @@ public class Memory {
     private static<T> T reallocate(T pointer, int oldSize, int newSize) {
         vm.bytesAllocated += newSize - oldSize;
         if(newSize > oldSize){
+            if (vm.bytesAllocated > vm.peakBytesAllocated) vm.peakBytesAllocated = vm.bytesAllocated;
             if(DEBUG_STRESS_GC) {
                 collectGarbage();
             }
@@ -57,8 +58,8 @@ public class Memory {
     }
 
     public static void freeObject(Obj object) {
-        if(DEBUG_LOG_GC){
-            printf("%s free type %s\n", object, object.type);
+        if(Diagnostics.loggingGc){
+            Diagnostics.gcLog.printf("%s free type %s\n", object, object.type);
         }
         switch (object.type) {
             case OBJ_BOUND_METHOD: {
@@ -89,6 +90,18 @@ public class Memory {
                 FREE(object);
                 break;
             }
+            case OBJ_LIST: {
+                ObjList list = (ObjList) object;
+                freeList(list);
+                FREE(object);
+                break;
+            }
+            case OBJ_MAP: {
+                ObjMap map = (ObjMap) object;
+                freeMap(map);
+                FREE(object);
+                break;
+            }
             case OBJ_NATIVE:
                 FREE(object);
                 break;
@@ -120,10 +133,10 @@ public class Memory {
         if (object == null) return;
         if (object.isMarked) return;
 
-        if(DEBUG_LOG_GC){
-            printf("%s mark ", object);
-            printValue(OBJ_VAL(object));
-            printf("\n");
+        if(Diagnostics.loggingGc){
+            Diagnostics.gcLog.printf("%s mark ", object);
+            printValue(Diagnostics.gcLog, OBJ_VAL(object));
+            Diagnostics.gcLog.println();
         }
         object.isMarked = true;
 
@@ -142,7 +155,7 @@ public class Memory {
 
     public static void markRoots(){
         for(int slot = 0; slot < vm.stackTop; slot++){
-            markValue(vm.stack[slot]);
+            if (vm.stack[slot] != null) markValue(vm.stack[slot]); // null : a raw number in vm.numbers.
         }
 
         for(int i = 0; i < vm.frameCount; i++){
@@ -165,10 +178,10 @@ public class Memory {
     }
 
     public static void blackenObject(Obj object) {
-        if(DEBUG_LOG_GC){
-            printf("%s blacken ", object.toString());
-            printValue(OBJ_VAL(object));
-            printf("\n");
+        if(Diagnostics.loggingGc){
+            Diagnostics.gcLog.printf("%s blacken ", object);
+            printValue(Diagnostics.gcLog, OBJ_VAL(object));
+            Diagnostics.gcLog.println();
         }
 
         switch (object.type) {
@@ -195,6 +208,7 @@ public class Memory {
             case OBJ_FUNCTION:{
                 ObjFunction function = (ObjFunction) object;
                 markObject(function.name);
+                markObject(function.closure);
                 markArray(function.chunk.constants);
                 break;
             }
@@ -204,6 +218,24 @@ public class Memory {
                 markTable(instance.fields);
                 break;
             }
+            case OBJ_LIST: {
+                ObjList list = (ObjList) object;
+                if (list.values != null) {
+                    for (int i = 0; i < list.count; i++) {
+                        markValue(list.values[i]);
+                    }
+                }
+                break;
+            }
+            case OBJ_MAP: {
+                ObjMap map = (ObjMap) object;
+                for (int i = 0; i < map.used; i++) {
+                    if (map.keys[i] == null) continue;
+                    markValue(map.keys[i]);
+                    markValue(map.values[i]);
+                }
+                break;
+            }
             case OBJ_UPVALUE:
                 markValue(((ObjUpvalue) object).closed);
                 break;
@@ -224,6 +256,7 @@ public class Memory {
         Obj previous = null;
         Obj object = vm.objects;
         while(object != null){
+            if (AllocationProfiler.tracking) AllocationProfiler.swept(object, object.isMarked);
             if(object.isMarked){
                 object.isMarked = false;
                 previous = object;
@@ -243,20 +276,40 @@ public class Memory {
 
     public static void collectGarbage() {
         int before = -1;
-        if(DEBUG_LOG_GC){
-            printf("-- gc begin\n");
+        if(Diagnostics.loggingGc){
+            Diagnostics.gcLog.print("-- gc begin\n");
             before = vm.bytesAllocated;
         }
 
+        LoxEvents.GcEvent event = new LoxEvents.GcEvent();
+        boolean timed = event.isEnabled();
+        event.begin();
+        int bytesBefore = vm.bytesAllocated;
+
+        long start = System.nanoTime();
         markRoots();
         traceReferences();
+        long marked = timed ? System.nanoTime() : 0;
         tableRemoveWhite(vm.strings);
+        long stringsRemoved = timed ? System.nanoTime() : 0;
         sweep();
         vm.nextGC = vm.bytesAllocated * GC_HEAP_GROW_FACTOR;
+        vm.gcCount++;
+        vm.gcNanos += System.nanoTime() - start;
+
+        if (timed && event.shouldCommit()) {
+            event.bytesBefore = bytesBefore;
+            event.markNanos = marked - start;
+            event.stringsNanos = stringsRemoved - marked;
+            event.sweepNanos = System.nanoTime() - stringsRemoved;
+            event.bytesAfter = vm.bytesAllocated;
+            event.nextGC = vm.nextGC;
+            event.commit();
+        }
 
-        if(DEBUG_LOG_GC){
-                printf("-- gc end\n");
-                printf("   collected %d bytes (from %d to %d) next at %d\n",
+        if(Diagnostics.loggingGc){
+                Diagnostics.gcLog.print("-- gc end\n");
+                Diagnostics.gcLog.printf("   collected %d bytes (from %d to %d) next at %d\n",
                         before - vm.bytesAllocated, before, vm.bytesAllocated,
                         vm.nextGC);
         }
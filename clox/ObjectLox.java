@@ -1,7 +1,8 @@
 package clox;
 
+import clox.utility.OutputSink;
+
 import static clox.Chunk.initChunk;
-import static clox.Common.DEBUG_LOG_GC;
 import static clox.Main.SIZE_FACTOR;
 import static clox.Memory.ALLOCATE;
 import static clox.Memory.FREE_ARRAY;
@@ -20,6 +21,8 @@ public class ObjectLox {
     public static boolean IS_CLOSURE(Value value)       {return isObjType(value, OBJ_CLOSURE);}
     public static boolean IS_FUNCTION(Value value)      {return isObjType(value, OBJ_FUNCTION);}
     public static boolean IS_INSTANCE(Value value)      {return isObjType(value, OBJ_INSTANCE);}
+    public static boolean IS_LIST(Value value)          {return isObjType(value, OBJ_LIST);}
+    public static boolean IS_MAP(Value value)           {return isObjType(value, OBJ_MAP);}
     public static boolean IS_NATIVE(Value value)        {return isObjType(value, OBJ_NATIVE);}
     public static boolean IS_STRING(Value value)        {return isObjType(value, OBJ_STRING);}
 
@@ -28,7 +31,9 @@ public class ObjectLox {
     public static ObjClosure     AS_CLOSURE(Value value)        {return ((ObjClosure)AS_OBJ(value));}
     public static ObjFunction    AS_FUNCTION(Value value)       {return ((ObjFunction)AS_OBJ(value));}
     public static ObjInstance    AS_INSTANCE(Value value)       {return ((ObjInstance)AS_OBJ(value));}
-    public static NativeFn       AS_NATIVE(Value value)         {return (((ObjNative)AS_OBJ(value)).function);}
+    public static ObjList        AS_LIST(Value value)           {return ((ObjList)AS_OBJ(value));}
+    public static ObjMap         AS_MAP(Value value)            {return ((ObjMap)AS_OBJ(value));}
+    public static NativeCall     AS_NATIVE(Value value)         {return (((ObjNative)AS_OBJ(value)).function);}
     public static ObjString      AS_STRING(Value value)         {return (ObjString) AS_OBJ(value);}
     public static String         AS_CSTRING(Value value)        {return (((ObjString) AS_OBJ(value)).chars);}
 
@@ -38,6 +43,8 @@ public class ObjectLox {
         OBJ_CLOSURE,
         OBJ_FUNCTION,
         OBJ_INSTANCE,
+        OBJ_LIST,
+        OBJ_MAP,
         OBJ_NATIVE,
         OBJ_STRING,
         OBJ_UPVALUE
@@ -56,26 +63,103 @@ public class ObjectLox {
         int upvalueCount;
         public Chunk chunk;
         public ObjString name;
+        public ObjClosure closure; // Shared by every call when the function captures nothing.
+        TreeEngine.Node[] nodes; // The chunk translated by TreeEngine, on the first call.
+        Jit.Code jitCode; // Compiled by Jit once hotness reaches its threshold, null again after a deopt.
+        int hotness; // Calls and loop back edges counted by Jit.run().
+        boolean jitFailed; // The chunk could not be compiled, it stays interpreted.
 
         @Override
         public String asString() {
-            return type + " : " + name;
+            return name == null ? "<script>" : "<fn " + name.chars + ">";
+        }
+    }
+
+    // Natives read their arguments in place : stack[base] .. stack[base + argCount - 1].
+    // A native that reports an error through runtimeError() returns null.
+    public abstract static class NativeCall {
+        public final int arity; // -1 accepts any number of arguments.
+        public String name;
+
+        protected NativeCall(int arity) {
+            this.arity = arity;
+        }
+
+        public abstract Value call(Value[] stack, int base, int argCount);
+
+        public String asString() {
+            return "Native function. Arity : " + arity;
+        }
+    }
+
+    public abstract static class Native0 extends NativeCall {
+        protected Native0() {super(0);}
+
+        public abstract Value call0();
+
+        @Override
+        public final Value call(Value[] stack, int base, int argCount) {
+            return call0();
+        }
+    }
+
+    public abstract static class Native1 extends NativeCall {
+        protected Native1() {super(1);}
+
+        public abstract Value call1(Value a);
+
+        @Override
+        public final Value call(Value[] stack, int base, int argCount) {
+            return call1(stack[base]);
+        }
+    }
+
+    public abstract static class Native2 extends NativeCall {
+        protected Native2() {super(2);}
+
+        public abstract Value call2(Value a, Value b);
+
+        @Override
+        public final Value call(Value[] stack, int base, int argCount) {
+            return call2(stack[base], stack[base + 1]);
+        }
+    }
+
+    public abstract static class Native3 extends NativeCall {
+        protected Native3() {super(3);}
+
+        public abstract Value call3(Value a, Value b, Value c);
+
+        @Override
+        public final Value call(Value[] stack, int base, int argCount) {
+            return call3(stack[base], stack[base + 1], stack[base + 2]);
         }
     }
 
-    public abstract static class NativeFn{
+    // Compatibility adapter for natives written against the copying convention.
+    public abstract static class NativeFn extends NativeCall {
         int argCount;
         Value[] args;
 
+        protected NativeFn() {super(-1);}
+
         public abstract Value run(int argCount, Value[] args);
 
+        @Override
+        public final Value call(Value[] stack, int base, int argCount) {
+            Value[] args = new Value[argCount];
+            System.arraycopy(stack, base, args, 0, argCount);
+            return run(argCount, args);
+        }
+
+        @Override
         public String asString() {
             return "Native function. Arg : " + argCount;
         }
     }
 
     public static class ObjNative extends Obj {
-        NativeFn function;
+        NativeCall function;
 
         @Override
         public String asString() {
@@ -87,6 +171,7 @@ public class ObjectLox {
         int length;
         String chars;
         int hash;
+        boolean hoisted; // Named a global some OP_HOIST cached, storing into it bumps vm.globalVersion.
 
         @Override
         public String asString() {
@@ -95,7 +180,7 @@ public class ObjectLox {
     }
 
     public static class ObjUpvalue extends Obj {
-        Value location;
+        int location; // Stack slot while open, -1 once the value moved into closed.
         Value closed;
         ObjUpvalue next;
 
@@ -136,6 +221,60 @@ public class ObjectLox {
         }
     }
 
+    public static class ObjList extends Obj {
+        public double[] numbers; // Packed storage while the list holds only numbers.
+        public Value[] values;   // Replaces numbers once anything else is stored.
+        public int count;
+        public int capacity;
+        boolean printing; // Set while the list is being printed, a list that contains itself prints as [...].
+
+        @Override
+        public String asString() {
+            if (printing) return "[...]";
+            printing = true;
+            try {
+                StringBuilder builder = new StringBuilder("[");
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) builder.append(", ");
+                    builder.append(ListLox.listGet(this, i).asString());
+                }
+                return builder.append("]").toString();
+            } finally {
+                printing = false;
+            }
+        }
+    }
+
+    public static class ObjMap extends Obj {
+        int[] index;    // Open addressing slots : entry position + 1, EMPTY or TOMBSTONE.
+        int[] hashes;
+        Value[] keys;   // Dense entries in insertion order, a removed entry has a null key.
+        Value[] values;
+        public int count;
+        int used;
+        int capacity;
+        boolean printing; // Set while the map is being printed, a map that contains itself prints as {...}.
+
+        @Override
+        public String asString() {
+            if (printing) return "{...}";
+            printing = true;
+            try {
+                StringBuilder builder = new StringBuilder("{");
+                boolean first = true;
+                for (int i = 0; i < used; i++) {
+                    if (keys[i] == null) continue;
+                    if (!first) builder.append(", ");
+                    builder.append(keys[i].asString()).append(": ").append(values[i].asString());
+                    first = false;
+                }
+                return builder.append("}").toString();
+            } finally {
+                printing = false;
+            }
+        }
+    }
+
     public static class ObjBoundMethod extends Obj {
         public Value receiver;
         public ObjClosure method;
@@ -166,16 +305,17 @@ public class ObjectLox {
     }
 
     public static Obj allocateObject(Obj obj, ObjType type) {
-        Obj object = obj;
+        Obj object = ALLOCATE(obj, 1);
         object.type = type;
         object.isMarked = false;
         object.next = vm.objects;
         vm.objects = object;
 
-        if(DEBUG_LOG_GC) {
-            Integer size = SIZE_FACTOR;
-            printf("%s allocate %d for %s\n", object, size, type);
+        if(Diagnostics.loggingGc) {
+            Diagnostics.gcLog.printf("%s allocate %d for %s\n", object, SIZE_FACTOR, type);
         }
+        vm.objectsAllocated++;
+        if (AllocationProfiler.tracking) AllocationProfiler.allocated(object);
         return object;
     }
 
@@ -195,16 +335,16 @@ public class ObjectLox {
     }
 
     public static ObjClosure newClosure(ObjFunction function) {
-        ObjUpvalue[] upvalues = ALLOCATE(new ObjUpvalue[function.upvalueCount]);
+        ObjUpvalue[] upvalues = ALLOCATE(new ObjUpvalue[function.upvalueCount], function.upvalueCount);
         for(int i = 0; i < function.upvalueCount; i++){
             upvalues[i] = null;
         }
 
-        ObjClosure closure = (ObjClosure) ALLOCATE_OBJ(new ObjClosure(), OBJ_CLOSURE);
+        ObjClosure closure = new ObjClosure();
         closure.function = function;
         closure.upvalues = upvalues;
         closure.upvalueCount = function.upvalueCount;
-        return closure;
+        return (ObjClosure) ALLOCATE_OBJ(closure, OBJ_CLOSURE);
     }
 
     public static ObjFunction newFunction(){
@@ -212,6 +352,7 @@ public class ObjectLox {
         function.arity = 0;
         function.upvalueCount = 0;
         function.name = null;
+        function.closure = null;
         function.chunk = new Chunk();
         initChunk(function.chunk);
         return function;
@@ -225,17 +366,30 @@ public class ObjectLox {
         return instance;
     }
 
-    public static ObjNative newNative(NativeFn function){
+    public static ObjList newList() {
+        ObjList list = (ObjList) ALLOCATE_OBJ(new ObjList(), OBJ_LIST);
+        ListLox.initList(list);
+        return list;
+    }
+
+    public static ObjMap newMap() {
+        ObjMap map = (ObjMap) ALLOCATE_OBJ(new ObjMap(), OBJ_MAP);
+        MapLox.initMap(map);
+        return map;
+    }
+
+    public static ObjNative newNative(NativeCall function){
         ObjNative native_ = (ObjNative) ALLOCATE_OBJ(new ObjNative(), OBJ_NATIVE);
         native_.function = function;
         return native_;
     }
 
     public static ObjString allocateString(String chars, int hash) {
-        ObjString string = (ObjString) ALLOCATE_OBJ(new ObjString(), OBJ_STRING);
+        ObjString string = new ObjString();
         string.length = chars.length();
         string.chars = chars;
         string.hash = hash;
+        ALLOCATE_OBJ(string, OBJ_STRING);
         push(OBJ_VAL(string));
         tableSet(vm.strings, string, NIL_VAL());
         pop();
@@ -246,10 +400,11 @@ public class ObjectLox {
         int hash = hashString(chars, chars.length());
         ObjString interned = tableFindString(vm.strings, chars, chars.length(), hash);
         if (interned != null) return interned;
-        return allocateString(chars, hash);
+        String heapChars = ALLOCATE(chars, chars.length() + 1);
+        return allocateString(heapChars, hash);
     }
 
-    public static ObjUpvalue newUpvalue(Value slot) {
+    public static ObjUpvalue newUpvalue(int slot) {
         ObjUpvalue upvalue = (ObjUpvalue) ALLOCATE_OBJ(new ObjUpvalue(), OBJ_UPVALUE);
         upvalue.closed = NIL_VAL();
         upvalue.location = slot;
@@ -276,6 +431,53 @@ public class ObjectLox {
         return allocateString(chars, hash);
     }
 
+    // Lists and maps print element by element, so numbers in them go through OutputSink.print(double) too.
+    public static void printObject(OutputSink out, Obj object) {
+        if (object.type == OBJ_LIST) {
+            ObjList list = (ObjList) object;
+            if (list.printing) {
+                out.print("[...]");
+                return;
+            }
+            list.printing = true;
+            try {
+                out.print('[');
+                for (int i = 0; i < list.count; i++) {
+                    if (i > 0) out.print(", ");
+                    if (list.values == null) out.print(list.numbers[i]);
+                    else printValue(out, list.values[i]);
+                }
+                out.print(']');
+            } finally {
+                list.printing = false;
+            }
+        } else if (object.type == OBJ_MAP) {
+            ObjMap map = (ObjMap) object;
+            if (map.printing) {
+                out.print("{...}");
+                return;
+            }
+            map.printing = true;
+            try {
+                out.print('{');
+                boolean first = true;
+                for (int i = 0; i < map.used; i++) {
+                    if (map.keys[i] == null) continue;
+                    if (!first) out.print(", ");
+                    printValue(out, map.keys[i]);
+                    out.print(": ");
+                    printValue(out, map.values[i]);
+                    first = false;
+                }
+                out.print('}');
+            } finally {
+                map.printing = false;
+            }
+        } else {
+            out.print(object.asString());
+        }
+    }
+
     public static void printObject(Value value) {
         switch (OBJ_TYPE(value)) {
             case OBJ_BOUND_METHOD:
@@ -294,6 +496,12 @@ public class ObjectLox {
                 printf("%s instance",
                         AS_INSTANCE(value).klass.name.chars);
                 break;
+            case OBJ_LIST:
+                printf("%s", AS_LIST(value).asString());
+                break;
+            case OBJ_MAP:
+                printf("%s", AS_MAP(value).asString());
+                break;
             case OBJ_NATIVE:
                 printf("<native fn>");
                 break;
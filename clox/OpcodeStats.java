@@ -0,0 +1,153 @@
+package clox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static clox.Chunk.OpCode.*;
+import static clox.ObjectLox.*;
+import static clox.Value.*;
+import static clox.vm.*;
+
+// Exact execution counts per opcode, per adjacent opcode pair and per call site. Counting happens in
+// its own interpreter loop, selected by vm.run() while counting is on, so the regular loop is untouched.
+public class OpcodeStats {
+    static boolean counting;
+    static Path outputPath;
+
+    private static final int OPCODE_COUNT = Chunk.OpCode.values().length;
+    private static final long[] opcodes = new long[OPCODE_COUNT];
+    private static final long[] pairs = new long[OPCODE_COUNT * OPCODE_COUNT];
+    private static final Map<String, Map<String, long[]>> callSites = new HashMap<>();
+    private static int previous = -1;
+
+    public static void enable(Path output) {
+        counting = true;
+        outputPath = output;
+    }
+
+    public static void reset() {
+        Arrays.fill(opcodes, 0);
+        Arrays.fill(pairs, 0);
+        callSites.clear();
+        previous = -1;
+    }
+
+    static InterpretResult run() {
+        for (; ; ) {
+            CallFrame frame = vm.frames[vm.frameCount - 1];
+            int instruction = frame.closure.function.chunk.code.get(frame.ip);
+            opcodes[instruction]++;
+            if (previous != -1) pairs[previous * OPCODE_COUNT + instruction]++;
+            previous = instruction;
+            if (instruction == OP_CALL.opcode || instruction == OP_TAIL_CALL.opcode
+                    || instruction == OP_INVOKE.opcode || instruction == OP_SUPER_INVOKE.opcode) {
+                countCallSite(frame, instruction);
+            }
+
+            InterpretResult result = step();
+            if (result != null) return result;
+        }
+    }
+
+    // Called from freeVM(), writes the counters when an output file was configured.
+    static void finish() {
+        if (!counting || outputPath == null) return;
+        try {
+            writeJson(outputPath);
+        } catch (IOException e) {
+            System.err.println("Could not write opcode statistics " + outputPath);
+        }
+    }
+
+    public static void writeJson(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            writeJson(writer);
+        }
+    }
+
+    public static void writeJson(Writer writer) throws IOException {
+        writer.write("{\n  \"opcodes\": {");
+        boolean first = true;
+        for (int i = 0; i < OPCODE_COUNT; i++) {
+            if (opcodes[i] == 0) continue;
+            writer.write(first ? "\n" : ",\n");
+            writer.write("    \"" + opcodeName(i) + "\": " + opcodes[i]);
+            first = false;
+        }
+
+        writer.write("\n  },\n  \"pairs\": [");
+        List<Integer> pairIndices = new ArrayList<>();
+        for (int i = 0; i < pairs.length; i++) {
+            if (pairs[i] != 0) pairIndices.add(i);
+        }
+        pairIndices.sort((a, b) -> Long.compare(pairs[b], pairs[a]));
+        first = true;
+        for (int pair : pairIndices) {
+            writer.write(first ? "\n" : ",\n");
+            writer.write("    {\"first\": \"" + opcodeName(pair / OPCODE_COUNT) + "\", \"second\": \""
+                    + opcodeName(pair % OPCODE_COUNT) + "\", \"count\": " + pairs[pair] + "}");
+            first = false;
+        }
+
+        writer.write("\n  ],\n  \"callSites\": [");
+        first = true;
+        for (Map.Entry<String, Map<String, long[]>> site : callSites.entrySet()) {
+            long total = 0;
+            StringBuilder callees = new StringBuilder();
+            for (Map.Entry<String, long[]> callee : site.getValue().entrySet()) {
+                if (callees.length() > 0) callees.append(", ");
+                callees.append('"').append(escape(callee.getKey())).append("\": ").append(callee.getValue()[0]);
+                total += callee.getValue()[0];
+            }
+            writer.write(first ? "\n" : ",\n");
+            writer.write("    {\"site\": \"" + escape(site.getKey()) + "\", \"count\": " + total
+                    + ", \"callees\": {" + callees + "}}");
+            first = false;
+        }
+        writer.write("\n  ]\n}\n");
+    }
+
+    //======================================Advanced functions==========================================================
+    private static void countCallSite(CallFrame frame, int instruction) {
+        Chunk chunk = frame.closure.function.chunk;
+        String site = Profiler.functionName(frame.closure.function) + ":" + chunk.lines.get(frame.ip)
+                + "@" + frame.ip;
+
+        String callee;
+        if (instruction == OP_INVOKE.opcode || instruction == OP_SUPER_INVOKE.opcode) {
+            ObjString method = AS_STRING(chunk.constants.get(chunk.code.get(frame.ip + 1)));
+            callee = "." + method.chars;
+        } else {
+            callee = describe(peek(chunk.code.get(frame.ip + 1)));
+        }
+        callSites.computeIfAbsent(site, k -> new HashMap<>())
+                .computeIfAbsent(callee, k -> new long[1])[0]++;
+    }
+
+    private static String describe(Value callee) {
+        if (!IS_OBJ(callee)) return callee.type.toString();
+        switch (OBJ_TYPE(callee)) {
+            case OBJ_CLOSURE:      return Profiler.functionName(AS_CLOSURE(callee).function);
+            case OBJ_FUNCTION:     return Profiler.functionName(AS_FUNCTION(callee));
+            case OBJ_BOUND_METHOD: return Profiler.functionName(AS_BOUND_METHOD(callee).method.function);
+            case OBJ_CLASS:        return AS_CLASS(callee).name.chars;
+            case OBJ_NATIVE:       return "<native fn>";
+            default:               return OBJ_TYPE(callee).toString();
+        }
+    }
+
+    private static String opcodeName(int opcode) {
+        return Chunk.OpCode.values()[opcode].name();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
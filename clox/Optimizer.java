@@ -0,0 +1,408 @@
+package clox;
+
+import clox.Chunk.OpCode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static clox.Chunk.OpCode.*;
+import static clox.Chunk.instructionLength;
+import static clox.Chunk.jumpTarget;
+import static clox.Main.UINT16_MAX;
+import static clox.ObjectLox.ObjFunction;
+
+// Optimizing mode, selected with --optimize. The compiler still emits bytecode in one pass; when a function is
+// finished its chunk is decoded into a list of instructions in which jumps point at their target instruction,
+// the passes below rewrite that list and it is encoded back into the chunk. The compiler contributes the live
+// range of every local, the rest is read off the bytecode. Nothing is written back when a jump would not fit.
+//   copy propagation   : a local initialized from another one reads that one, while neither is assigned.
+//   unused locals      : stores into a local that is never read are dropped, a pure initializer becomes nil.
+//     The slot itself stays, locals are addressed by position.
+//   common expressions : a pure expression repeated right after itself becomes OP_DUP.
+//   dead code          : instructions no path reaches, such as those after a return, are removed.
+//   jump threading     : jumps to jumps go to the final target, jumps to a return return, jumps to the next
+//     instruction are removed.
+public class Optimizer {
+    static boolean enabled;
+
+    private static final OpCode[] OPCODES = OpCode.values();
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    // A local of the function : its initializer is [initStart, start) in the chunk as compiled, it is live
+    // from start to end.
+    static class LocalRange {
+        int slot;
+        int initStart;
+        int start;
+        int end;
+        boolean captured;
+    }
+
+    static class Instruction {
+        int offset; // In the chunk as compiled.
+        int index;  // In the list, removed instructions keep their place.
+        int[] bytes;
+        int line;
+        Instruction target; // Of a jump, its offset is computed again when the list is encoded.
+        boolean removed;
+
+        OpCode op() {
+            return OPCODES[bytes[0]];
+        }
+    }
+
+    static void optimize(ObjFunction function, List<LocalRange> ranges) {
+        List<Instruction> code = decode(function.chunk);
+        if (code == null) return;
+        propagateCopies(code, ranges);
+        removeUnusedLocals(code, ranges);
+        eliminateCommonExpressions(code);
+        boolean changed = true;
+        for (int pass = 0; changed && pass < 8; pass++) {
+            changed = removeUnreachable(code);
+            changed |= threadJumps(code);
+        }
+        encode(function.chunk, code);
+    }
+
+    //======================================Advanced functions==========================================================
+    private static List<Instruction> decode(Chunk chunk) {
+        List<Instruction> code = new ArrayList<>();
+        Instruction[] at = new Instruction[chunk.count];
+        for (int offset = 0; offset < chunk.count; offset += instructionLength(chunk, offset)) {
+            Instruction instruction = new Instruction();
+            instruction.offset = offset;
+            instruction.index = code.size();
+            instruction.bytes = new int[instructionLength(chunk, offset)];
+            for (int i = 0; i < instruction.bytes.length; i++) instruction.bytes[i] = chunk.code.get(offset + i);
+            instruction.line = chunk.lines.get(offset);
+            at[offset] = instruction;
+            code.add(instruction);
+        }
+        for (Instruction instruction : code) {
+            if (!isJump(instruction.op()) && !isInlineJump(instruction.op())) continue;
+            int target = jumpTarget(chunk, instruction.offset);
+            if (target < 0 || target >= chunk.count || at[target] == null) return null;
+            instruction.target = at[target];
+        }
+        return code;
+    }
+
+    // var b = a; : b reads a in its whole range when neither is assigned there and no closure captures them.
+    private static void propagateCopies(List<Instruction> code, List<LocalRange> ranges) {
+        for (LocalRange range : ranges) {
+            if (range.captured) continue;
+            List<Instruction> init = between(code, range.initStart, range.start);
+            if (init.size() != 1) continue;
+            OpCode get = init.get(0).op();
+            if (get != OP_GET_LOCAL && get != OP_GET_LOCAL_RAW) continue;
+            int source = init.get(0).bytes[1];
+            if (source == range.slot) continue;
+            LocalRange sourceRange = enclosing(ranges, source, range.initStart);
+            if (sourceRange == null || sourceRange.captured) continue;
+
+            List<Instruction> body = between(code, range.start, range.end);
+            if (assigns(body, source) || assigns(body, range.slot)) continue;
+            for (Instruction instruction : body) {
+                if (instruction.op() == get && instruction.bytes[1] == range.slot) instruction.bytes[1] = source;
+            }
+        }
+    }
+
+    private static void removeUnusedLocals(List<Instruction> code, List<LocalRange> ranges) {
+        for (LocalRange range : ranges) {
+            if (range.captured || range.slot == 0) continue;
+            List<Instruction> body = between(code, range.start, range.end);
+            boolean read = false;
+            for (Instruction instruction : body) {
+                OpCode op = instruction.op();
+                if ((op == OP_GET_LOCAL || op == OP_GET_LOCAL_RAW) && instruction.bytes[1] == range.slot) read = true;
+            }
+            if (read) continue;
+
+            // A store leaves the value on the stack, so removing it changes nothing else.
+            for (Instruction instruction : body) {
+                OpCode op = instruction.op();
+                if ((op == OP_SET_LOCAL || op == OP_SET_LOCAL_RAW) && instruction.bytes[1] == range.slot) {
+                    instruction.removed = true;
+                }
+            }
+            List<Instruction> init = between(code, range.initStart, range.start);
+            if (init.isEmpty() || isTarget(code, init.subList(1, init.size()))) continue;
+            boolean pure = true;
+            for (Instruction instruction : init) pure &= pops(instruction) >= 0 && !canFail(instruction.op());
+            if (!pure) continue;
+            init.get(0).bytes = new int[]{OP_NIL.opcode};
+            for (Instruction instruction : init.subList(1, init.size())) instruction.removed = true;
+        }
+    }
+
+    // E E becomes E OP_DUP when E only reads locals and constants and computes, so nothing changes in between.
+    private static void eliminateCommonExpressions(List<Instruction> code) {
+        List<Instruction> live = new ArrayList<>();
+        for (Instruction instruction : code) {
+            if (!instruction.removed) live.add(instruction);
+        }
+        for (int end = 0; end < live.size(); end++) {
+            int start = expressionStart(live, end);
+            int length = end - start + 1;
+            if (start == -1 || length < 2 || end + length >= live.size()) continue;
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = Arrays.equals(live.get(start + i).bytes, live.get(end + 1 + i).bytes);
+            }
+            if (!same || isTarget(code, live.subList(start + 1, end + length + 1))) continue;
+
+            live.get(end + 1).bytes = new int[]{OP_DUP.opcode};
+            for (Instruction instruction : live.subList(end + 2, end + length + 1)) instruction.removed = true;
+            end += length;
+        }
+    }
+
+    private static boolean removeUnreachable(List<Instruction> code) {
+        boolean[] reached = new boolean[code.size()];
+        ArrayDeque<Instruction> work = new ArrayDeque<>();
+        work.push(live(code, 0));
+        while (!work.isEmpty()) {
+            Instruction instruction = work.pop();
+            if (reached[instruction.index]) continue;
+            reached[instruction.index] = true;
+            OpCode op = instruction.op();
+            if (instruction.target != null) work.push(live(code, instruction.target.index));
+            if (op != OP_JUMP && op != OP_LOOP && op != OP_RETURN && op != OP_INLINE_RETURN) {
+                Instruction next = live(code, instruction.index + 1);
+                if (next != null) work.push(next);
+            }
+        }
+
+        boolean changed = false;
+        for (Instruction instruction : code) {
+            if (!instruction.removed && !reached[instruction.index]) {
+                instruction.removed = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean threadJumps(List<Instruction> code) {
+        boolean changed = false;
+        for (Instruction instruction : code) {
+            if (instruction.removed || !isJump(instruction.op())) continue;
+            boolean conditional = instruction.op() == OP_JUMP_IF_FALSE;
+            Instruction target = live(code, instruction.target.index);
+            // The condition stays on the stack, so a second OP_JUMP_IF_FALSE jumps the same way as the first.
+            for (int hops = 0; hops < 16 && target != null && target.target != null; hops++) {
+                if (conditional && target.op() != OP_JUMP_IF_FALSE && !isUnconditional(target.op())) break;
+                if (!conditional && !isUnconditional(target.op())) break;
+                Instruction next = live(code, target.target.index);
+                if (next == null || next == target || (conditional && next.index <= instruction.index)) break;
+                target = next;
+            }
+            if (target == null) continue;
+            if (target != instruction.target) {
+                instruction.target = target;
+                changed = true;
+            }
+
+            if (!conditional && target.op() == OP_RETURN) {
+                instruction.bytes = new int[]{OP_RETURN.opcode};
+                instruction.target = null;
+                changed = true;
+            } else if (target == live(code, instruction.index + 1)) {
+                instruction.removed = true;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Writes the instructions back, unless a jump does not fit its operand.
+    private static void encode(Chunk chunk, List<Instruction> code) {
+        Map<Instruction, Integer> offsets = new IdentityHashMap<>();
+        int count = 0;
+        for (Instruction instruction : code) {
+            if (instruction.removed) continue;
+            offsets.put(instruction, count);
+            count += isJump(instruction.op()) ? 3 : instruction.bytes.length;
+        }
+
+        List<Integer> bytes = new ArrayList<>(count);
+        List<Integer> lines = new ArrayList<>(count);
+        for (Instruction instruction : code) {
+            if (instruction.removed) continue;
+            int[] encoded = instruction.bytes;
+            if (instruction.target != null) {
+                Instruction target = live(code, instruction.target.index);
+                if (target == null) return;
+                int from = offsets.get(instruction) + (isJump(instruction.op()) ? 3 : instruction.bytes.length);
+                int to = offsets.get(target);
+                if (!isUnconditional(instruction.op()) && to < from) return;
+                OpCode op = instruction.op() == OP_JUMP_IF_FALSE ? OP_JUMP_IF_FALSE : to >= from ? OP_JUMP : OP_LOOP;
+                int jump = Math.abs(to - from);
+                if (jump > UINT16_MAX) return;
+                if (isJump(instruction.op())) {
+                    encoded = new int[]{op.opcode, (jump >> 8) & 0xff, jump & 0xff};
+                } else {
+                    encoded = Arrays.copyOf(instruction.bytes, instruction.bytes.length);
+                    encoded[encoded.length - 2] = (jump >> 8) & 0xff;
+                    encoded[encoded.length - 1] = jump & 0xff;
+                }
+            }
+            for (int value : encoded) {
+                bytes.add(value);
+                lines.add(instruction.line);
+            }
+        }
+
+        if (chunk.inlined != null) {
+            for (Chunk.InlinedCall call : chunk.inlined) {
+                call.start = movedOffset(code, offsets, call.start, count);
+                call.end = movedOffset(code, offsets, call.end, count);
+            }
+        }
+        chunk.code = bytes;
+        chunk.lines = lines;
+        chunk.count = count;
+        chunk.capacity = count;
+    }
+
+    // Where the first instruction left at or after offset went.
+    private static int movedOffset(List<Instruction> code, Map<Instruction, Integer> offsets, int offset, int count) {
+        for (Instruction instruction : code) {
+            if (!instruction.removed && instruction.offset >= offset) return offsets.get(instruction);
+        }
+        return count;
+    }
+
+    // Values a pure instruction takes from the stack, it pushes one. -1 for any other instruction.
+    private static int pops(Instruction instruction) {
+        switch (instruction.op()) {
+            case OP_CONSTANT:
+            case OP_NIL:
+            case OP_TRUE:
+            case OP_FALSE:
+            case OP_GET_LOCAL:
+            case OP_GET_UPVALUE:
+            case OP_CONSTANT_RAW:
+            case OP_GET_LOCAL_RAW:
+                return 0;
+            case OP_NOT:
+            case OP_NEGATE:
+            case OP_NEGATE_RAW:
+                return 1;
+            case OP_BOX:
+            case OP_UNBOX:
+                return instruction.bytes[1] == 0 ? 1 : -1;
+            case OP_EQUAL:
+            case OP_GREATER:
+            case OP_LESS:
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+            case OP_ADD_RAW:
+            case OP_SUBTRACT_RAW:
+            case OP_MULTIPLY_RAW:
+            case OP_DIVIDE_RAW:
+            case OP_EQUAL_RAW:
+            case OP_GREATER_RAW:
+            case OP_LESS_RAW:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    // Type checked instructions, they report a runtime error for the wrong operands.
+    private static boolean canFail(OpCode op) {
+        switch (op) {
+            case OP_NEGATE:
+            case OP_UNBOX:
+            case OP_GREATER:
+            case OP_LESS:
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // First instruction of the pure expression whose value the instruction at end pushes, or -1.
+    private static int expressionStart(List<Instruction> live, int end) {
+        int needed = 1;
+        for (int i = end; i >= 0; i--) {
+            int pops = pops(live.get(i));
+            if (pops < 0) return -1;
+            needed += pops - 1;
+            if (needed == 0) return i;
+        }
+        return -1;
+    }
+
+    private static List<Instruction> between(List<Instruction> code, int start, int end) {
+        List<Instruction> instructions = new ArrayList<>();
+        for (Instruction instruction : code) {
+            if (!instruction.removed && instruction.offset >= start && instruction.offset < end) {
+                instructions.add(instruction);
+            }
+        }
+        return instructions;
+    }
+
+    // The range of slot that is live at offset, the one of a local visible there.
+    private static LocalRange enclosing(List<LocalRange> ranges, int slot, int offset) {
+        for (LocalRange range : ranges) {
+            if (range.slot == slot && range.start <= offset && offset < range.end) return range;
+        }
+        return null;
+    }
+
+    private static boolean assigns(List<Instruction> instructions, int slot) {
+        for (Instruction instruction : instructions) {
+            OpCode op = instruction.op();
+            if ((op == OP_SET_LOCAL || op == OP_SET_LOCAL_RAW) && instruction.bytes[1] == slot) return true;
+        }
+        return false;
+    }
+
+    private static boolean isTarget(List<Instruction> code, List<Instruction> instructions) {
+        for (Instruction instruction : code) {
+            if (instruction.removed || instruction.target == null) continue;
+            Instruction target = live(code, instruction.target.index);
+            if (instructions.contains(target)) return true;
+        }
+        return false;
+    }
+
+    // The instruction at index, or the first one after it that was not removed.
+    private static Instruction live(List<Instruction> code, int index) {
+        for (int i = index; i < code.size(); i++) {
+            if (!code.get(i).removed) return code.get(i);
+        }
+        return null;
+    }
+
+    private static boolean isJump(OpCode op) {
+        return op == OP_JUMP || op == OP_JUMP_IF_FALSE || op == OP_LOOP;
+    }
+
+    // The guards and OP_INLINE_RETURN of Inliner, they jump forward and keep their other operands.
+    private static boolean isInlineJump(OpCode op) {
+        return op == OP_CALL_GUARD || op == OP_INVOKE_GUARD || op == OP_INLINE_RETURN;
+    }
+
+    private static boolean isUnconditional(OpCode op) {
+        return op == OP_JUMP || op == OP_LOOP;
+    }
+}
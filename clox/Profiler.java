@@ -0,0 +1,140 @@
+package clox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+import static clox.ObjectLox.*;
+import static clox.vm.*;
+
+// Sampling profiler for Lox code. A daemon thread raises a tick every interval and the profiled
+// interpreter loop records the Lox call stack at the next instruction boundary, so samples are only
+// taken at safe points and the regular loop in vm.run() carries no profiling code at all.
+public class Profiler {
+    static boolean sampling;
+    private static volatile boolean tick;
+    private static Thread ticker;
+    private static long intervalNanos;
+
+    private static final Map<String, long[]> stacks = new HashMap<>();
+    private static final Map<String, long[]> selfSamples = new HashMap<>();
+    private static final Map<String, long[]> totalSamples = new HashMap<>();
+    private static long sampleCount;
+
+    public static void start(long intervalMicros) {
+        stop();
+        intervalNanos = Math.max(intervalMicros, 1) * 1_000;
+        sampling = true;
+        ticker = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(intervalNanos);
+                tick = true;
+            }
+        }, "lox-profiler");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public static void stop() {
+        sampling = false;
+        if (ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+    }
+
+    public static void reset() {
+        stacks.clear();
+        selfSamples.clear();
+        totalSamples.clear();
+        sampleCount = 0;
+    }
+
+    static InterpretResult run() {
+        for (; ; ) {
+            if (tick) {
+                tick = false;
+                sample();
+            }
+            InterpretResult result = step();
+            if (result != null) return result;
+        }
+    }
+
+    static void sample() {
+        if (vm.frameCount == 0) return;
+
+        StringBuilder stack = new StringBuilder();
+        Set<String> seen = new HashSet<>();
+        String function = null;
+        for (int i = 0; i < vm.frameCount; i++) {
+            CallFrame frame = vm.frames[i];
+            function = functionName(frame.closure.function);
+            if (i > 0) stack.append(';');
+            stack.append(function).append(':').append(currentLine(frame));
+            if (seen.add(function)) count(totalSamples, function);
+        }
+        count(selfSamples, function);
+        count(stacks, stack.toString());
+        sampleCount++;
+    }
+
+    // Collapsed stacks, one "frame;frame;frame count" line per distinct stack, as read by flamegraph.pl.
+    public static void writeCollapsed(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path)) {
+            for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(' ');
+                writer.write(Long.toString(entry.getValue()[0]));
+                writer.write('\n');
+            }
+        }
+    }
+
+    public static void report(PrintStream out, int top) {
+        double millisPerSample = intervalNanos / 1_000_000.0;
+        out.printf("%d samples, %.3f ms interval%n", sampleCount, millisPerSample);
+        out.printf("%-32s %10s %7s %10s %7s%n", "function", "self ms", "self %", "total ms", "total %");
+
+        List<String> functions = new ArrayList<>(totalSamples.keySet());
+        functions.sort((a, b) -> Long.compare(samples(selfSamples, b), samples(selfSamples, a)));
+        for (int i = 0; i < Math.min(top, functions.size()); i++) {
+            String function = functions.get(i);
+            long self = samples(selfSamples, function);
+            long total = samples(totalSamples, function);
+            out.printf("%-32s %10.1f %6.1f%% %10.1f %6.1f%%%n", function,
+                    self * millisPerSample, percent(self), total * millisPerSample, percent(total));
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    static String functionName(ObjFunction function) {
+        return function.name == null ? "<script>" : function.name.chars;
+    }
+
+    static int currentLine(CallFrame frame) {
+        return frame.closure.function.chunk.lines.get(Math.max(frame.ip - 1, 0));
+    }
+
+    private static void count(Map<String, long[]> counters, String key) {
+        counters.computeIfAbsent(key, k -> new long[1])[0]++;
+    }
+
+    private static long samples(Map<String, long[]> counters, String key) {
+        long[] counter = counters.get(key);
+        return counter == null ? 0 : counter[0];
+    }
+
+    private static double percent(long samples) {
+        return sampleCount == 0 ? 0 : samples * 100.0 / sampleCount;
+    }
+}
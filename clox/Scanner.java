@@ -6,7 +6,8 @@ public class Scanner {
     public enum TokenType {
         TOKEN_LEFT_PAREN, TOKEN_RIGHT_PAREN,
         TOKEN_LEFT_BRACE, TOKEN_RIGHT_BRACE,
-        TOKEN_COMMA, TOKEN_DOT, TOKEN_MINUS, TOKEN_PLUS,
+        TOKEN_LEFT_BRACKET, TOKEN_RIGHT_BRACKET,
+        TOKEN_COMMA, TOKEN_COLON, TOKEN_DOT, TOKEN_MINUS, TOKEN_PLUS,
         TOKEN_SEMICOLON, TOKEN_SLASH, TOKEN_STAR,
         TOKEN_BANG, TOKEN_BANG_EQUAL,
         TOKEN_EQUAL, TOKEN_EQUAL_EQUAL,
@@ -25,7 +26,8 @@ public class Scanner {
         public int start;
         public int length;
         public int line;
-        public String literal;
+        public String literal; // null for TOKEN_NUMBER, the scanner stores the value in number instead.
+        public double number;
 
         public Token(TokenType type, int start, int length, int line, String literal) {
             this.type = type;
@@ -36,6 +38,10 @@ public class Scanner {
         }
     }
 
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
     static int start;
     static int current;
     static int line;
@@ -199,13 +205,33 @@ public class Scanner {
         return makeToken(identifierType());
     }
 
+    // The digits are accumulated while scanning. A literal whose digits fit in 53 bits and that has at most
+    // 22 decimals is mantissa / 10^decimals, a division of two exact doubles and therefore correctly rounded.
+    // Anything longer is left to Double.parseDouble().
     static Token number() {
-        while (isDigit(peek())) advance();
+        long mantissa = getCharFromStart(0) - '0';
+        boolean exact = true;
+        int decimals = 0;
+        while (isDigit(peek())) {
+            if (mantissa > MAX_EXACT_MANTISSA / 10) exact = false;
+            mantissa = mantissa * 10 + (advance() - '0');
+        }
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
-            while (isDigit(peek())) advance();
+            while (isDigit(peek())) {
+                if (mantissa > MAX_EXACT_MANTISSA / 10) exact = false;
+                mantissa = mantissa * 10 + (advance() - '0');
+                decimals++;
+            }
         }
-        return makeToken(TOKEN_NUMBER);
+
+        Token token = new Token(TOKEN_NUMBER, Scanner.start, Scanner.current - Scanner.start, Scanner.line, null);
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && decimals < POWERS_OF_TEN.length) {
+            token.number = decimals == 0 ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+        } else {
+            token.number = Double.parseDouble(Scanner.source.substring(Scanner.start, Scanner.current));
+        }
+        return token;
     }
 
     static Token string() {
@@ -238,10 +264,16 @@ public class Scanner {
                 return makeToken(TOKEN_LEFT_BRACE);
             case '}':
                 return makeToken(TOKEN_RIGHT_BRACE);
+            case '[':
+                return makeToken(TOKEN_LEFT_BRACKET);
+            case ']':
+                return makeToken(TOKEN_RIGHT_BRACKET);
             case ';':
                 return makeToken(TOKEN_SEMICOLON);
             case ',':
                 return makeToken(TOKEN_COMMA);
+            case ':':
+                return makeToken(TOKEN_COLON);
             case '.':
                 return makeToken(TOKEN_DOT);
             case '-':
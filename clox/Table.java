@@ -45,7 +45,7 @@ public class Table {
     }
 
     public static void adjustCapacity(Table table, int capacity) {
-        Entry[] entries = ALLOCATE(new Entry[capacity]);
+        Entry[] entries = ALLOCATE(new Entry[capacity], capacity);
         for (int i = 0; i < capacity; i++) {
             entries[i] = new Entry();
             entries[i].key = null;
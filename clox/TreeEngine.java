@@ -0,0 +1,590 @@
+package clox;
+
+import clox.Chunk.OpCode;
+
+import static clox.Chunk.instructionLength;
+import static clox.ObjectLox.*;
+import static clox.Table.tableGet;
+import static clox.Table.tableSet;
+import static clox.Value.*;
+import static clox.utility.Utility.stdout;
+import static clox.vm.*;
+import static clox.vm.InterpretResult.*;
+
+// Alternative to the bytecode loop, selected with --engine=tree. The first call of a function translates its
+// chunk into one node per instruction, with operands decoded, constants resolved and successors linked, so
+// run() only follows node.execute() from node to node. Frames, the value stack and ip stay those of the VM;
+// rare instructions and the slow paths of the others go back through vm.step() for that one instruction.
+public class TreeEngine {
+    static boolean enabled;
+
+    private static InterpretResult result;
+    // Returned by a node when the current frame changed, and when the program ended with result.
+    private static final Node RELOAD = new Fallback();
+    private static final Node EXIT = new Fallback();
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    static InterpretResult run() {
+        CallFrame frame = vm.frames[vm.frameCount - 1];
+        Node node = nodes(frame.closure.function)[frame.ip];
+        for (; ; ) {
+            vm.instructions++;
+            node = node.execute(frame);
+            if (node == RELOAD) {
+                frame = vm.frames[vm.frameCount - 1];
+                node = nodes(frame.closure.function)[frame.ip];
+            } else if (node == EXIT) {
+                return result;
+            }
+        }
+    }
+
+    abstract static class Node {
+        int offset; // Of the instruction in the chunk.
+        int end;    // Of the instruction after it, where ip points while it executes.
+        Node next;
+
+        abstract Node execute(CallFrame frame);
+
+        // Executes the instruction with vm.step(), which also reports its runtime errors.
+        final Node step(CallFrame frame) {
+            frame.ip = offset;
+            int frameCount = vm.frameCount;
+            vm.instructions--; // Counted by run() already.
+            InterpretResult stepResult = vm.step();
+            if (stepResult != null) return exit(stepResult);
+            return vm.frameCount == frameCount && frame.ip == end ? next : RELOAD;
+        }
+    }
+
+    static final class Fallback extends Node {
+        Node execute(CallFrame frame) {
+            return step(frame);
+        }
+    }
+
+    static final class Constant extends Node {
+        Value value;
+
+        Node execute(CallFrame frame) {
+            push(value);
+            return next;
+        }
+    }
+
+    static final class Nil extends Node {
+        Node execute(CallFrame frame) {
+            push(NIL_VAL());
+            return next;
+        }
+    }
+
+    static final class Bool extends Node {
+        boolean value;
+
+        Node execute(CallFrame frame) {
+            push(BOOL_VAL(value));
+            return next;
+        }
+    }
+
+    static final class Pop extends Node {
+        Node execute(CallFrame frame) {
+            vm.stackTop--;
+            return next;
+        }
+    }
+
+    static final class GetLocal extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            push(vm.stack[frame.slots + slot]);
+            return next;
+        }
+    }
+
+    static final class SetLocal extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            vm.stack[frame.slots + slot] = vm.stack[vm.stackTop - 1];
+            return next;
+        }
+    }
+
+    static final class GetGlobal extends Node {
+        ObjString name;
+
+        Node execute(CallFrame frame) {
+            Value value = new NilValue();
+            if (!tableGet(vm.globals, name, value)) return step(frame);
+            push(value);
+            return next;
+        }
+    }
+
+    static final class GetHoisted extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            int index = frame.slots + slot;
+            if (vm.numbers[index] != vm.globalVersion) return step(frame);
+            push(vm.stack[index]);
+            return next;
+        }
+    }
+
+    static final class GetUpvalue extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            push(getUpvalue(frame.closure.upvalues[slot]));
+            return next;
+        }
+    }
+
+    static final class SetUpvalue extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            setUpvalue(frame.closure.upvalues[slot], vm.stack[vm.stackTop - 1]);
+            return next;
+        }
+    }
+
+    static final class GetProperty extends Node {
+        ObjString name;
+
+        Node execute(CallFrame frame) {
+            Value receiver = vm.stack[vm.stackTop - 1];
+            if (!IS_INSTANCE(receiver)) return step(frame);
+            Value value = new NilValue();
+            if (!tableGet(AS_INSTANCE(receiver).fields, name, value)) return step(frame);
+            vm.stack[vm.stackTop - 1] = value;
+            return next;
+        }
+    }
+
+    static final class SetProperty extends Node {
+        ObjString name;
+
+        Node execute(CallFrame frame) {
+            Value receiver = vm.stack[vm.stackTop - 2];
+            if (!IS_INSTANCE(receiver)) return step(frame);
+            Value value = vm.stack[vm.stackTop - 1];
+            tableSet(AS_INSTANCE(receiver).fields, name, value);
+            vm.stackTop--;
+            vm.stack[vm.stackTop - 1] = value;
+            return next;
+        }
+    }
+
+    static final class Equal extends Node {
+        Node execute(CallFrame frame) {
+            vm.stackTop--;
+            vm.stack[vm.stackTop - 1] = BOOL_VAL(valuesEqual(vm.stack[vm.stackTop - 1], vm.stack[vm.stackTop]));
+            return next;
+        }
+    }
+
+    // ADD .. LESS on two numbers, anything else takes the VM's path with its string concatenation and errors.
+    static final class Arithmetic extends Node {
+        OpCode op;
+
+        Node execute(CallFrame frame) {
+            Value b = vm.stack[vm.stackTop - 1];
+            Value a = vm.stack[vm.stackTop - 2];
+            if (!IS_NUMBER(a) || !IS_NUMBER(b)) return step(frame);
+            double x = AS_NUMBER(a);
+            double y = AS_NUMBER(b);
+            Value value;
+            switch (op) {
+                case OP_ADD:      value = new DoubleValue(x + y); break;
+                case OP_SUBTRACT: value = new DoubleValue(x - y); break;
+                case OP_MULTIPLY: value = new DoubleValue(x * y); break;
+                case OP_DIVIDE:   value = new DoubleValue(x / y); break;
+                case OP_GREATER:  value = new BoolValue(x > y); break;
+                default:          value = new BoolValue(x < y); break;
+            }
+            vm.stackTop--;
+            vm.stack[vm.stackTop - 1] = value;
+            return next;
+        }
+    }
+
+    static final class GetLocalRaw extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            pushRaw(vm.numbers[frame.slots + slot]);
+            return next;
+        }
+    }
+
+    static final class SetLocalRaw extends Node {
+        int slot;
+
+        Node execute(CallFrame frame) {
+            vm.numbers[frame.slots + slot] = vm.numbers[vm.stackTop - 1];
+            return next;
+        }
+    }
+
+    static final class ConstantRaw extends Node {
+        double value;
+
+        Node execute(CallFrame frame) {
+            pushRaw(value);
+            return next;
+        }
+    }
+
+    static final class RawArithmetic extends Node {
+        OpCode op;
+
+        Node execute(CallFrame frame) {
+            vm.stackTop--;
+            int top = vm.stackTop - 1;
+            double y = vm.numbers[vm.stackTop];
+            switch (op) {
+                case OP_ADD_RAW:      vm.numbers[top] += y; break;
+                case OP_SUBTRACT_RAW: vm.numbers[top] -= y; break;
+                case OP_MULTIPLY_RAW: vm.numbers[top] *= y; break;
+                case OP_DIVIDE_RAW:   vm.numbers[top] /= y; break;
+                case OP_GREATER_RAW:  vm.stack[top] = new BoolValue(vm.numbers[top] > y); break;
+                case OP_LESS_RAW:     vm.stack[top] = new BoolValue(vm.numbers[top] < y); break;
+                default:              vm.stack[top] = new BoolValue(vm.numbers[top] == y); break;
+            }
+            return next;
+        }
+    }
+
+    static final class Box extends Node {
+        int depth;
+
+        Node execute(CallFrame frame) {
+            int index = vm.stackTop - 1 - depth;
+            vm.stack[index] = new DoubleValue(vm.numbers[index]);
+            return next;
+        }
+    }
+
+    static final class Not extends Node {
+        Node execute(CallFrame frame) {
+            vm.stack[vm.stackTop - 1] = BOOL_VAL(isFalsey(vm.stack[vm.stackTop - 1]));
+            return next;
+        }
+    }
+
+    static final class Negate extends Node {
+        Node execute(CallFrame frame) {
+            Value value = vm.stack[vm.stackTop - 1];
+            if (!IS_NUMBER(value)) return step(frame);
+            vm.stack[vm.stackTop - 1] = NUMBER_VAL(-AS_NUMBER(value));
+            return next;
+        }
+    }
+
+    static final class Print extends Node {
+        Node execute(CallFrame frame) {
+            printValue(pop());
+            stdout.println();
+            return next;
+        }
+    }
+
+    static final class Jump extends Node {
+        Node target;
+
+        Node execute(CallFrame frame) {
+            return target;
+        }
+    }
+
+    static final class JumpIfFalse extends Node {
+        Node target;
+
+        Node execute(CallFrame frame) {
+            return isFalsey(vm.stack[vm.stackTop - 1]) ? target : next;
+        }
+    }
+
+    static final class Call extends Node {
+        int argCount;
+
+        Node execute(CallFrame frame) {
+            frame.ip = end;
+            int frameCount = vm.frameCount;
+            if (!callValue(peek(argCount), argCount)) return exit(INTERPRET_RUNTIME_ERROR);
+            return vm.frameCount == frameCount ? next : RELOAD;
+        }
+    }
+
+    static final class Invoke extends Node {
+        ObjString method;
+        int argCount;
+
+        Node execute(CallFrame frame) {
+            frame.ip = end;
+            int frameCount = vm.frameCount;
+            if (!invoke(method, argCount)) return exit(INTERPRET_RUNTIME_ERROR);
+            return vm.frameCount == frameCount ? next : RELOAD;
+        }
+    }
+
+    static final class CallGuard extends Node {
+        ObjFunction function;
+        int argCount;
+        Node target;
+
+        Node execute(CallFrame frame) {
+            return inlinedCall(function, argCount) ? next : target;
+        }
+    }
+
+    static final class InvokeGuard extends Node {
+        ObjString method;
+        ObjFunction function;
+        int argCount;
+        Node target;
+
+        Node execute(CallFrame frame) {
+            return inlinedInvoke(method, function, argCount) ? next : target;
+        }
+    }
+
+    static final class InlineReturn extends Node {
+        int slot;
+        Node target;
+
+        Node execute(CallFrame frame) {
+            inlineReturn(frame, slot);
+            return target;
+        }
+    }
+
+    static final class Return extends Node {
+        Node execute(CallFrame frame) {
+            Value value = pop();
+            closeUpvalues(frame.slots);
+            vm.frameCount--;
+            if (vm.frameCount == 0) {
+                pop();
+                return exit(INTERPRET_OK);
+            }
+            vm.stackTop = frame.slots;
+            push(value);
+            return RELOAD;
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    private static Node exit(InterpretResult interpretResult) {
+        result = interpretResult;
+        return EXIT;
+    }
+
+    // Nodes by offset, null inside instructions. Built once per function and kept with it.
+    private static Node[] nodes(ObjFunction function) {
+        if (function.nodes == null) function.nodes = translate(function.chunk);
+        return function.nodes;
+    }
+
+    private static Node[] translate(Chunk chunk) {
+        Node[] nodes = new Node[chunk.count + 1];
+        for (int offset = 0; offset < chunk.count; ) {
+            Node node = newNode(chunk, offset);
+            node.offset = offset;
+            node.end = offset + instructionLength(chunk, offset);
+            nodes[offset] = node;
+            offset = node.end;
+        }
+        for (int offset = 0; offset < chunk.count; offset++) {
+            Node node = nodes[offset];
+            if (node == null) continue;
+            node.next = nodes[node.end];
+            if (node instanceof Jump) ((Jump) node).target = nodes[jumpTarget(chunk, node)];
+            if (node instanceof JumpIfFalse) ((JumpIfFalse) node).target = nodes[jumpTarget(chunk, node)];
+            if (node instanceof CallGuard) ((CallGuard) node).target = nodes[jumpTarget(chunk, node)];
+            if (node instanceof InvokeGuard) ((InvokeGuard) node).target = nodes[jumpTarget(chunk, node)];
+            if (node instanceof InlineReturn) ((InlineReturn) node).target = nodes[jumpTarget(chunk, node)];
+        }
+        return nodes;
+    }
+
+    private static Node newNode(Chunk chunk, int offset) {
+        OpCode op = OpCode.values()[chunk.code.get(offset)];
+        switch (op) {
+            case OP_CONSTANT: {
+                Constant node = new Constant();
+                node.value = constant(chunk, offset);
+                return node;
+            }
+            case OP_NIL:
+                return new Nil();
+            case OP_TRUE:
+            case OP_FALSE: {
+                Bool node = new Bool();
+                node.value = op == OpCode.OP_TRUE;
+                return node;
+            }
+            case OP_POP:
+                return new Pop();
+            case OP_GET_LOCAL: {
+                GetLocal node = new GetLocal();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_SET_LOCAL: {
+                SetLocal node = new SetLocal();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_GET_GLOBAL: {
+                GetGlobal node = new GetGlobal();
+                node.name = AS_STRING(constant(chunk, offset));
+                return node;
+            }
+            case OP_GET_HOISTED: {
+                GetHoisted node = new GetHoisted();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_GET_UPVALUE: {
+                GetUpvalue node = new GetUpvalue();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_SET_UPVALUE: {
+                SetUpvalue node = new SetUpvalue();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_GET_PROPERTY: {
+                GetProperty node = new GetProperty();
+                node.name = AS_STRING(constant(chunk, offset));
+                return node;
+            }
+            case OP_SET_PROPERTY: {
+                SetProperty node = new SetProperty();
+                node.name = AS_STRING(constant(chunk, offset));
+                return node;
+            }
+            case OP_EQUAL:
+                return new Equal();
+            case OP_ADD:
+            case OP_SUBTRACT:
+            case OP_MULTIPLY:
+            case OP_DIVIDE:
+            case OP_GREATER:
+            case OP_LESS:
+                return arithmetic(op);
+            case OP_ADD_NUM:
+            case OP_ADD_STR:
+                return arithmetic(OpCode.OP_ADD);
+            case OP_SUBTRACT_NUM:
+                return arithmetic(OpCode.OP_SUBTRACT);
+            case OP_MULTIPLY_NUM:
+                return arithmetic(OpCode.OP_MULTIPLY);
+            case OP_DIVIDE_NUM:
+                return arithmetic(OpCode.OP_DIVIDE);
+            case OP_GREATER_NUM:
+                return arithmetic(OpCode.OP_GREATER);
+            case OP_LESS_NUM:
+                return arithmetic(OpCode.OP_LESS);
+            case OP_NOT:
+                return new Not();
+            case OP_NEGATE:
+                return new Negate();
+            case OP_PRINT:
+                return new Print();
+            case OP_JUMP:
+            case OP_LOOP:
+                return new Jump();
+            case OP_JUMP_IF_FALSE:
+                return new JumpIfFalse();
+            case OP_CALL: {
+                Call node = new Call();
+                node.argCount = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_INVOKE: {
+                Invoke node = new Invoke();
+                node.method = AS_STRING(constant(chunk, offset));
+                node.argCount = chunk.code.get(offset + 2);
+                return node;
+            }
+            case OP_CALL_GUARD: {
+                CallGuard node = new CallGuard();
+                node.function = AS_FUNCTION(constant(chunk, offset));
+                node.argCount = chunk.code.get(offset + 2);
+                return node;
+            }
+            case OP_INVOKE_GUARD: {
+                InvokeGuard node = new InvokeGuard();
+                node.method = AS_STRING(constant(chunk, offset));
+                node.function = AS_FUNCTION(chunk.constants.values.get(chunk.code.get(offset + 2)));
+                node.argCount = chunk.code.get(offset + 3);
+                return node;
+            }
+            case OP_INLINE_RETURN: {
+                InlineReturn node = new InlineReturn();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_RETURN:
+                return new Return();
+            case OP_GET_LOCAL_RAW: {
+                GetLocalRaw node = new GetLocalRaw();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_SET_LOCAL_RAW: {
+                SetLocalRaw node = new SetLocalRaw();
+                node.slot = chunk.code.get(offset + 1);
+                return node;
+            }
+            case OP_CONSTANT_RAW: {
+                ConstantRaw node = new ConstantRaw();
+                node.value = AS_NUMBER(constant(chunk, offset));
+                return node;
+            }
+            case OP_ADD_RAW:
+            case OP_SUBTRACT_RAW:
+            case OP_MULTIPLY_RAW:
+            case OP_DIVIDE_RAW:
+            case OP_GREATER_RAW:
+            case OP_LESS_RAW:
+            case OP_EQUAL_RAW: {
+                RawArithmetic node = new RawArithmetic();
+                node.op = op;
+                return node;
+            }
+            case OP_BOX: {
+                Box node = new Box();
+                node.depth = chunk.code.get(offset + 1);
+                return node;
+            }
+            default:
+                return new Fallback();
+        }
+    }
+
+    private static Arithmetic arithmetic(OpCode op) {
+        Arithmetic node = new Arithmetic();
+        node.op = op;
+        return node;
+    }
+
+    private static Value constant(Chunk chunk, int offset) {
+        return chunk.constants.values.get(chunk.code.get(offset + 1));
+    }
+
+    private static int jumpTarget(Chunk chunk, Node node) {
+        return Chunk.jumpTarget(chunk, node.offset);
+    }
+}
@@ -1,12 +1,15 @@
 package clox;
 
+import clox.utility.NumberFormatter;
+import clox.utility.OutputSink;
+
 import java.util.ArrayList;
 import java.util.List;
 
 import static clox.Memory.*;
 import static clox.ObjectLox.*;
 import static clox.Value.ValueType.*;
-import static clox.utility.Utility.printf;
+import static clox.utility.Utility.stdout;
 
 public abstract class Value {
     public enum ValueType{
@@ -71,7 +74,15 @@ public abstract class Value {
     }
 
     public static void printValue(Value value){
-        printf("%s", value.asString());
+        printValue(stdout, value);
+    }
+
+    public static void printValue(OutputSink out, Value value){
+        switch (value.type) {
+            case VAL_NUMBER: out.print(AS_NUMBER(value)); break;
+            case VAL_OBJ:    printObject(out, AS_OBJ(value)); break;
+            default:         out.print(value.asString());
+        }
     }
 
     public static boolean valuesEqual(Value a, Value b){
@@ -90,7 +101,7 @@ public abstract class Value {
         switch (type){
             case VAL_BOOL :   return as.toString();
             case VAL_NIL :    return "nil";
-            case VAL_NUMBER : return as.toString();
+            case VAL_NUMBER : return NumberFormatter.toString((Double) as);
             case VAL_OBJ :    return ((Obj)as).asString();
             default:
                 throw new RuntimeException("Add value : " + type);
@@ -0,0 +1,260 @@
+package clox.utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes a class file with a constant pool, methods and their Code attribute, nothing else. The version is
+// 49 (Java 5), which the JVM verifies by type inference, so no StackMapTable has to be computed. Branches use
+// labels resolved when the method is finished; a method whose branches do not fit 16 bits is rejected.
+public class ClassFileWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    public ClassFileWriter(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    public int utf8(String value) {
+        return entry("U" + value, out -> {
+            out.writeByte(CONSTANT_UTF8);
+            out.writeUTF(value);
+        });
+    }
+
+    public int integer(int value) {
+        return entry("I" + value, out -> {
+            out.writeByte(CONSTANT_INTEGER);
+            out.writeInt(value);
+        });
+    }
+
+    public int classRef(String name) {
+        int utf8 = utf8(name);
+        return entry("C" + name, out -> {
+            out.writeByte(CONSTANT_CLASS);
+            out.writeShort(utf8);
+        });
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    public Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        return new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interfaces.
+            out.writeShort(0); // Fields.
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // Attributes.
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // The body of one method. Opcodes and operands are appended as they come, labels are plain ints.
+    public class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+        private byte[] code = new byte[256];
+        private int length;
+        private final List<Integer> labels = new ArrayList<>();
+        // Branches to patch : position of the offset, position of the opcode, label and width in bytes.
+        private final List<int[]> branches = new ArrayList<>();
+
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public void op(int opcode) {
+            put(opcode);
+        }
+
+        public void op(int opcode, int operand) {
+            put(opcode);
+            put(operand);
+        }
+
+        public void opShort(int opcode, int operand) {
+            put(opcode);
+            put(operand >> 8);
+            put(operand);
+        }
+
+        // iconst_n, bipush, sipush or ldc_w, whichever is shortest.
+        public void pushInt(int value) {
+            if (value >= -1 && value <= 5) op(0x03 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) op(0x10, value);
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) opShort(0x11, value);
+            else opShort(0x13, integer(value));
+        }
+
+        public int newLabel() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        public void mark(int label) {
+            labels.set(label, length);
+        }
+
+        public void branch(int opcode, int label) {
+            branches.add(new int[]{length + 1, length, label, 2});
+            opShort(opcode, 0);
+        }
+
+        public void lookupswitch(int[] keys, int[] targets, int defaultLabel) {
+            int opcode = length;
+            put(0xab);
+            while (length % 4 != 0) put(0);
+            switchTarget(opcode, defaultLabel);
+            putInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                putInt(keys[i]);
+                switchTarget(opcode, targets[i]);
+            }
+        }
+
+        // Returns false when a branch does not fit, the method is then not added to the class.
+        public boolean finish() {
+            for (int[] branch : branches) {
+                int offset = labels.get(branch[2]) - branch[1];
+                if (branch[3] == 2) {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) return false;
+                    code[branch[0]] = (byte) (offset >> 8);
+                    code[branch[0] + 1] = (byte) offset;
+                } else {
+                    for (int i = 0; i < 4; i++) code[branch[0] + i] = (byte) (offset >> (24 - 8 * i));
+                }
+            }
+            if (length > 65535) return false;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(0); // Exception table.
+                out.writeShort(0); // Attributes.
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            methods.add(bytes.toByteArray());
+            return true;
+        }
+
+        private void switchTarget(int opcode, int label) {
+            branches.add(new int[]{length, opcode, label, 4});
+            putInt(0);
+        }
+
+        private void putInt(int value) {
+            put(value >> 24);
+            put(value >> 16);
+            put(value >> 8);
+            put(value);
+        }
+
+        private void put(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) value;
+        }
+    }
+
+    //======================================Advanced functions==========================================================
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, EntryWriter writer) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+        try {
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + ":" + descriptor, out -> {
+            out.writeByte(CONSTANT_NAME_AND_TYPE);
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+        return entry("M" + tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package clox.utility;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+
+// Formats doubles the way clox prints them with printf("%g") : six significant digits, trailing zeros removed,
+// exponent notation below 1e-4 and from 1e6 on, "inf", "-inf", "nan" and "-0". Digits are written as ASCII
+// straight into a byte buffer. Integral values round exactly in long arithmetic, other values are scaled in
+// double arithmetic, and only a result too close to a rounding tie falls back to the exact BigDecimal value.
+public final class NumberFormatter {
+    public static final int MAX_LENGTH = 16; // "-1.23457e-308" is the longest output.
+
+    private static final int DIGITS = 6;
+    private static final long MIN_DIGITS = 100_000;
+    private static final long MAX_DIGITS = 1_000_000;
+    private static final double TIE_MARGIN = 1e-6;
+    private static final MathContext SIX_DIGITS = new MathContext(DIGITS, RoundingMode.HALF_EVEN);
+    private static final long[] LONG_POWERS = new long[19];
+    // The powers of ten that are exact doubles.
+    private static final double[] POWERS = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    static {
+        LONG_POWERS[0] = 1;
+        for (int i = 1; i < LONG_POWERS.length; i++) LONG_POWERS[i] = LONG_POWERS[i - 1] * 10;
+    }
+
+    private NumberFormatter() {
+    }
+
+    public static String toString(double value) {
+        byte[] bytes = new byte[MAX_LENGTH];
+        int length = format(value, bytes, 0);
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    // Writes value at buffer[offset], which needs MAX_LENGTH bytes of room, and returns the offset after it.
+    public static int format(double value, byte[] buffer, int offset) {
+        if (value != value) return put(buffer, offset, "nan");
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            buffer[offset++] = '-';
+            value = -value;
+        }
+        if (value == Double.POSITIVE_INFINITY) return put(buffer, offset, "inf");
+        if (value == 0) {
+            buffer[offset] = '0';
+            return offset + 1;
+        }
+
+        // Six significant digits in [MIN_DIGITS, MAX_DIGITS) and the decimal exponent of the first one.
+        long digits;
+        int exponent;
+        if (value < 1e18 && value == (long) value) {
+            long integer = (long) value;
+            exponent = decimalLength(integer) - 1;
+            digits = exponent < DIGITS ? integer * LONG_POWERS[DIGITS - 1 - exponent]
+                    : roundHalfEven(integer, LONG_POWERS[exponent - DIGITS + 1]);
+        } else {
+            exponent = value >= 1 && value < 1e18 ? decimalLength((long) value) - 1
+                    : (int) Math.floor(Math.log10(value));
+            digits = scaledDigits(value, exponent);
+            if (digits >= MAX_DIGITS) digits = scaledDigits(value, ++exponent);
+            else if (digits >= 0 && digits < MIN_DIGITS) digits = scaledDigits(value, --exponent);
+            if (digits < 0) {
+                BigDecimal exact = new BigDecimal(value).round(SIX_DIGITS);
+                exponent = exact.precision() - 1 - exact.scale();
+                digits = exact.unscaledValue().longValue() * LONG_POWERS[DIGITS - exact.precision()];
+            }
+        }
+        if (digits == MAX_DIGITS) {
+            digits = MIN_DIGITS;
+            exponent++;
+        }
+
+        int significant = DIGITS;
+        while (digits % LONG_POWERS[DIGITS - significant + 1] == 0) significant--;
+
+        if (exponent < -4 || exponent >= DIGITS) {
+            offset = putDigits(buffer, offset, digits, 0, 1);
+            if (significant > 1) {
+                buffer[offset++] = '.';
+                offset = putDigits(buffer, offset, digits, 1, significant);
+            }
+            buffer[offset++] = 'e';
+            buffer[offset++] = (byte) (exponent < 0 ? '-' : '+');
+            int magnitude = Math.abs(exponent);
+            if (magnitude >= 100) buffer[offset++] = (byte) ('0' + magnitude / 100);
+            buffer[offset++] = (byte) ('0' + magnitude / 10 % 10);
+            buffer[offset++] = (byte) ('0' + magnitude % 10);
+            return offset;
+        }
+        if (exponent < 0) {
+            buffer[offset++] = '0';
+            buffer[offset++] = '.';
+            for (int i = -1; i > exponent; i--) buffer[offset++] = '0';
+            return putDigits(buffer, offset, digits, 0, significant);
+        }
+        offset = putDigits(buffer, offset, digits, 0, exponent + 1);
+        if (significant > exponent + 1) {
+            buffer[offset++] = '.';
+            offset = putDigits(buffer, offset, digits, exponent + 1, significant);
+        }
+        return offset;
+    }
+
+    //======================================Advanced functions==========================================================
+    // Rounds value / 10^(exponent - 5) to the nearest long, or returns -1 when the scaled value lies so close to
+    // a tie that the rounding errors of the scaling could decide it, or when the scale factor is out of range.
+    private static long scaledDigits(double value, int exponent) {
+        int scale = DIGITS - 1 - exponent;
+        double scaled;
+        if (scale >= 0 && scale < POWERS.length) {
+            scaled = value * POWERS[scale];
+        } else if (scale < 0 && -scale < POWERS.length) {
+            scaled = value / POWERS[-scale];
+        } else {
+            return -1;
+        }
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) < TIE_MARGIN) return -1;
+        return (long) floor + (fraction > 0.5 ? 1 : 0);
+    }
+
+    private static long roundHalfEven(long value, long divisor) {
+        long quotient = value / divisor;
+        long remainder = value % divisor;
+        long twice = remainder * 2;
+        if (twice > divisor || (twice == divisor && (quotient & 1) == 1)) quotient++;
+        return quotient;
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (length < LONG_POWERS.length && value >= LONG_POWERS[length]) length++;
+        return length;
+    }
+
+    // Digits from position to limit of the six digits, position 0 being the most significant.
+    private static int putDigits(byte[] buffer, int offset, long digits, int position, int limit) {
+        for (int i = position; i < limit; i++) {
+            buffer[offset++] = (byte) ('0' + digits / LONG_POWERS[DIGITS - 1 - i] % 10);
+        }
+        return offset;
+    }
+
+    private static int put(byte[] buffer, int offset, String text) {
+        for (int i = 0; i < text.length(); i++) buffer[offset++] = (byte) text.charAt(i);
+        return offset;
+    }
+}
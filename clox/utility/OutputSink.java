@@ -0,0 +1,109 @@
+package clox.utility;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Buffered output for the VM. Text is encoded as UTF-8 straight into a byte buffer that is written to the
+// target stream or channel when it fills up, on flush() and at the end of every interpret(). Unlike PrintStream
+// there is no locking and no format parsing, printf() is only a fallback for formats with arguments.
+public class OutputSink {
+    public static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private final byte[] buffer;
+    private int count;
+
+    public OutputSink(OutputStream stream) {
+        this(stream, null, DEFAULT_CAPACITY);
+    }
+
+    public OutputSink(WritableByteChannel channel) {
+        this(null, channel, DEFAULT_CAPACITY);
+    }
+
+    public OutputSink(OutputStream stream, int capacity) {
+        this(stream, null, capacity);
+    }
+
+    private OutputSink(OutputStream stream, WritableByteChannel channel, int capacity) {
+        this.stream = stream;
+        this.channel = channel;
+        this.buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    // Standard output without System.out's PrintStream in between.
+    public static OutputSink standardOutput() {
+        return new OutputSink(new FileOutputStream(FileDescriptor.out));
+    }
+
+    public void print(char c) {
+        if (c < 0x80) {
+            if (count == buffer.length) flush();
+            buffer[count++] = (byte) c;
+        } else {
+            print(String.valueOf(c));
+        }
+    }
+
+    public void print(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                write(text.subSequence(i, length).toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (count == buffer.length) flush();
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    // Formatted like printf("%g"), written straight into the buffer.
+    public void print(double number) {
+        if (buffer.length - count < NumberFormatter.MAX_LENGTH) flush();
+        count = NumberFormatter.format(number, buffer, count);
+    }
+
+    public void println() {
+        print('\n');
+    }
+
+    public void printf(String format, Object... args) {
+        print(args.length == 0 && format.indexOf('%') == -1 ? format : String.format(format, args));
+    }
+
+    public void write(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (count == buffer.length) flush();
+            int chunk = Math.min(bytes.length - offset, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+        }
+    }
+
+    public void flush() {
+        if (count == 0) return;
+        try {
+            if (stream != null) {
+                stream.write(buffer, 0, count);
+                stream.flush();
+            } else {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) channel.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            count = 0;
+        }
+    }
+}
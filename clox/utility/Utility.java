@@ -3,80 +3,79 @@ package clox.utility;
 import clox.ObjectLox;
 
 import java.io.PrintStream;
-import java.util.MissingFormatArgumentException;
+import java.util.Arrays;
 
 // This place contains utilities that are used in many places in the source code. They are intended to be compatible with C code.
 public class Utility {
     public static PrintStream stderr = System.err;
+    public static OutputSink stdout = OutputSink.standardOutput();
 
     public static void printf(String msg, String arg) {
-        System.out.printf(msg, arg);
+        stdout.printf(msg, arg);
     }
 
     public static void printf(String msg, int i1, String str, int i2){
-        System.out.printf(msg, i1, str, i2);
+        stdout.printf(msg, i1, str, i2);
     }
 
     public static void printf(String msg, String name, int slot) {
-        System.out.printf(msg, name, slot);
+        stdout.printf(msg, name, slot);
     }
     
     public static void printf(String msg, String name, int offset, int i) {
-        System.out.printf(msg, name, offset, i);
+        stdout.printf(msg, name, offset, i);
     }
 
     public static void printf(String msg) {
-        System.out.printf(msg);
+        stdout.printf(msg);
     }
 
     public static void printf(String msg, int offset) {
-        System.out.printf(msg, offset);
+        stdout.printf(msg, offset);
     }
 
     public static void printf(String msg, ObjectLox.Obj object, Integer size, ObjectLox.ObjType type) {
-        System.out.printf(msg, object.toString(), size, type.toString());
+        stdout.printf(msg, object.toString(), size, type.toString());
     }
 
     public static void printf(String msg, ObjectLox.Obj object, ObjectLox.ObjType type) {
-        System.out.printf(msg, object.toString(), type.toString());
+        stdout.printf(msg, object.toString(), type.toString());
     }
 
     public static void printf(String msg, int i1, int i2, int i3, int i4) {
-        System.out.printf(msg, i1, i2, i3, i4);
+        stdout.printf(msg, i1, i2, i3, i4);
     }
 
     public static void printf(String msg, ObjectLox.Obj object) {
-        System.out.printf(msg, object.toString());
+        stdout.printf(msg, object.toString());
     }
 
+    // Everything printed to another stream is preceded by a flush of stdout, so the two stay in order.
+    // format[0] is the format, the rest are its arguments, already converted to strings.
     public static void vfprintf(PrintStream target, String[] format) {
-        for (String msg : format) {
-            printfOrPrint(target, msg);
-        }
-    }
-
-    private static void printfOrPrint(PrintStream target, String msg) {
-        try {
-            target.printf(msg);
-        }
-        catch (MissingFormatArgumentException nop){
-            System.out.print(msg);
-        }
+        stdout.flush();
+        if (format.length == 0) return;
+        Object[] args = Arrays.copyOfRange(format, 1, format.length, Object[].class);
+        target.print(args.length == 0 ? format[0] : String.format(format[0].replace("%d", "%s"), args));
     }
 
     public static void fprintf(PrintStream target, String msg, Integer integer) {
+        stdout.flush();
         target.printf(msg, integer);
     }
 
     public static void fprintf(PrintStream target, String msg, String integer) {
+        stdout.flush();
         target.printf(msg, integer);
     }
 
     public static void fprintf(PrintStream target, String msg) {
+        stdout.flush();
         target.printf(msg);
     }
 
     public static void fputs(String msg, PrintStream target) {
+        stdout.flush();
         target.printf(msg);
     }
 
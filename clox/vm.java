@@ -1,10 +1,16 @@
 package clox;
 
+import clox.Chunk.OpCode;
+import clox.utility.OutputSink;
+import clox.utility.Utility;
+
+import java.util.BitSet;
+
 import static clox.Chunk.OpCode.*;
-import static clox.Common.DEBUG_TRACE_EXECUTION;
 import static clox.Compiler.compile;
-import static clox.Debug.disassembleInstruction;
-import static clox.Main.UINT8_COUNT;
+import static clox.ListLox.*;
+import static clox.MapLox.*;
+import static clox.Memory.ALLOCATE;
 import static clox.Memory.freeObjects;
 import static clox.Table.*;
 import static clox.vm.InterpretResult.*;
@@ -13,8 +19,9 @@ import static clox.ObjectLox.*;
 import static clox.utility.Utility.*;
 
 public class vm {
-    public static final int FRAMES_MAX = 64;
-    public static final int STACK_MAX = (FRAMES_MAX * UINT8_COUNT);
+    public static final int FRAMES_INITIAL = 16;
+    public static final int FRAMES_MAX = 64 * 1024; // Default depth limit, see setFramesMax().
+    public static final int STACK_INITIAL = 256;
 
     public static class CallFrame {
         public ObjClosure closure;
@@ -22,11 +29,16 @@ public class vm {
         public int slots;
     }
 
-    public static CallFrame[] frames = new CallFrame[FRAMES_MAX];
+    // Both stacks start small and grow on demand, framesMax bounds the call depth.
+    public static CallFrame[] frames = new CallFrame[0];
     public static int frameCount;
-    public static Value[] stack = new Value[STACK_MAX];
+    public static int framesMax = FRAMES_MAX;
+    public static boolean quickening = true; // See quicken(), off with --no-quicken.
+    public static Value[] stack = new Value[0];
+    public static double[] numbers = new double[0]; // Raw numbers of the numeric locals pass, parallel to stack.
     public static int stackTop;
     protected static Table globals = new Table();
+    static long globalVersion; // Counts the stores into hoisted globals, see getHoisted().
     protected static Table strings = new Table();
     protected static ObjString initString;
     protected static ObjUpvalue openUpvalues;
@@ -37,23 +49,123 @@ public class vm {
     public static int bytesAllocated;
     public static int nextGC;
 
+    // Counters published by InterpreterMetrics, reset by initVM() and written by the interpreter thread only.
+    public static long instructions;
+    public static long calls;
+    public static long objectsAllocated;
+    public static int peakBytesAllocated;
+    public static long gcCount;
+    public static long gcNanos;
+    public static long compileCount;
+    public static long compileNanos;
+
     public enum InterpretResult {
         INTERPRET_OK,
         INTERPRET_COMPILE_ERROR,
         INTERPRET_RUNTIME_ERROR
     }
 
-    public static class ClockNative extends NativeFn {
+    public static class ClockNative extends Native0 {
         static Value clockNative(int argCount, Value... args) {
             return NUMBER_VAL(Double.valueOf(System.currentTimeMillis()) / 1_000);
         }
 
         @Override
-        public Value run(int argCount, Value[] args) {
+        public Value call0() {
             return clockNative(0);
         }
     }
 
+    public static class LenNative extends Native1 {
+        @Override
+        public Value call1(Value collection) {
+            if (IS_LIST(collection)) return NUMBER_VAL((double) AS_LIST(collection).count);
+            if (IS_MAP(collection)) return NUMBER_VAL((double) AS_MAP(collection).count);
+            runtimeError("Argument to len() must be a list or a map.");
+            return null;
+        }
+    }
+
+    public static class PushNative extends Native2 {
+        @Override
+        public Value call2(Value list, Value value) {
+            if (!IS_LIST(list)) {
+                runtimeError("First argument to push() must be a list.");
+                return null;
+            }
+            listAppend(AS_LIST(list), value);
+            return NIL_VAL();
+        }
+    }
+
+    public static class PopNative extends Native1 {
+        @Override
+        public Value call1(Value list) {
+            if (!IS_LIST(list)) {
+                runtimeError("Argument to pop() must be a list.");
+                return null;
+            }
+            if (AS_LIST(list).count == 0) {
+                runtimeError("Can't pop from an empty list.");
+                return null;
+            }
+            return listPop(AS_LIST(list));
+        }
+    }
+
+    public static class HasNative extends Native2 {
+        @Override
+        public Value call2(Value map, Value key) {
+            if (!IS_MAP(map)) {
+                runtimeError("First argument to has() must be a map.");
+                return null;
+            }
+            return BOOL_VAL(mapGet(AS_MAP(map), key, new NilValue()));
+        }
+    }
+
+    public static class RemoveNative extends Native2 {
+        @Override
+        public Value call2(Value map, Value key) {
+            if (!IS_MAP(map)) {
+                runtimeError("First argument to remove() must be a map.");
+                return null;
+            }
+            return BOOL_VAL(mapDelete(AS_MAP(map), key));
+        }
+    }
+
+    public static class SizeNative extends Native1 {
+        @Override
+        public Value call1(Value map) {
+            if (!IS_MAP(map)) {
+                runtimeError("Argument to size() must be a map.");
+                return null;
+            }
+            return NUMBER_VAL((double) AS_MAP(map).count);
+        }
+    }
+
+    public static class EntriesNative extends Native1 {
+        private final boolean keys;
+
+        EntriesNative(boolean keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public Value call1(Value map) {
+            if (!IS_MAP(map)) {
+                runtimeError(keys ? "Argument to keys() must be a map." : "Argument to values() must be a map.");
+                return null;
+            }
+            ObjList list = newList();
+            push(OBJ_VAL(list));
+            mapEntries(AS_MAP(map), list, keys);
+            return pop();
+        }
+    }
+
     static void resetStack() {
         vm.stackTop = 0;
         vm.frameCount = 0;
@@ -61,15 +173,26 @@ public class vm {
     }
 
     static void runtimeError(String... format) {
+        Diagnostics.flush();
         vfprintf(stderr, format);
         fputs("\n", stderr);
 
         for (int i = vm.frameCount - 1; i >= 0; i--) {
             CallFrame frame = vm.frames[i];
             ObjFunction function = frame.closure.function;
-            int instruction = function.chunk.code.get(frame.ip);
-            fprintf(stderr, "[line %d] in ",
-                    function.chunk.lines.get(instruction));
+            int instruction = Math.max(frame.ip - 1, 0);
+            int line = function.chunk.lines.get(instruction);
+            // An inlined body reports the call it replaced, as if it had pushed a frame.
+            Chunk.InlinedCall inlined = Chunk.inlinedAt(function.chunk, instruction);
+            if (inlined != null) {
+                ObjFunction callee = AS_FUNCTION(function.chunk.constants.values.get(inlined.function));
+                fprintf(stderr, "[line %d] in ", line);
+                fprintf(stderr, "%s()\n", callee.name.chars);
+                // A tail call would have replaced the caller's frame.
+                if (function.chunk.code.get(inlined.end) == OP_TAIL_CALL.opcode) continue;
+                line = inlined.line;
+            }
+            fprintf(stderr, "[line %d] in ", line);
             if (function.name == null) {
                 fprintf(stderr, "script\n");
             } else {
@@ -80,7 +203,8 @@ public class vm {
         resetStack();
     }
 
-    static void defineNative(String name, NativeFn function) {
+    static void defineNative(String name, NativeCall function) {
+        function.name = name;
         push(OBJ_VAL(copyString(name)));
         push(OBJ_VAL(newNative(function)));
         tableSet(vm.globals, AS_STRING(vm.stack[0]), vm.stack[1]);
@@ -88,11 +212,16 @@ public class vm {
         pop();
     }
 
-    static void initVM() {
+    public static void initVM() {
+        vm.stack = new Value[STACK_INITIAL];
+        vm.numbers = new double[STACK_INITIAL];
+        vm.frames = new CallFrame[0];
+        growFrames(FRAMES_INITIAL);
         resetStack();
         vm.objects = null;
         vm.bytesAllocated = 0;
         vm.nextGC = 1024 * 1024;
+        resetCounters();
         vm.grayCount = 0;
         vm.grayCapacity = 0;
         vm.grayStack = null;
@@ -104,20 +233,44 @@ public class vm {
         vm.initString = copyString("init");
 
         defineNative("clock", new ClockNative());
+        defineNative("len", new LenNative());
+        defineNative("push", new PushNative());
+        defineNative("pop", new PopNative());
+        defineNative("has", new HasNative());
+        defineNative("remove", new RemoveNative());
+        defineNative("size", new SizeNative());
+        defineNative("keys", new EntriesNative(true));
+        defineNative("values", new EntriesNative(false));
+        if (InterpreterMetrics.enabled) InterpreterMetrics.register();
+    }
 
-        for (int i = 0; i < frames.length; i++) {
-            frames[i] = new CallFrame();
-        }
+    static void resetCounters() {
+        vm.instructions = 0;
+        vm.calls = 0;
+        vm.objectsAllocated = 0;
+        vm.peakBytesAllocated = 0;
+        vm.gcCount = 0;
+        vm.gcNanos = 0;
+        vm.compileCount = 0;
+        vm.compileNanos = 0;
+    }
+
+    public static void setFramesMax(int limit) {
+        vm.framesMax = limit;
     }
 
-    static void freeVM() {
+    public static void freeVM() {
+        OpcodeStats.finish();
+        InterpreterMetrics.unregister();
         freeTable(vm.globals);
         freeTable(vm.strings);
         vm.initString = null;
         freeObjects();
+        Diagnostics.flush();
     }
 
     static void push(Value value) {
+        if (vm.stackTop == vm.stack.length) growStack();
         vm.stack[stackTop] = value;
         vm.stackTop++;
     }
@@ -138,11 +291,13 @@ public class vm {
             return false;
         }
 
-        if (vm.frameCount == FRAMES_MAX) {
+        if (vm.frameCount == vm.framesMax) {
             runtimeError("Stack overflow.");
             return false;
         }
+        if (vm.frameCount == vm.frames.length) growFrames(vm.frames.length * 2);
 
+        vm.calls++;
         CallFrame frame = vm.frames[vm.frameCount++];
         frame.closure = closure;
         frame.ip = 0;
@@ -150,6 +305,23 @@ public class vm {
         return true;
     }
 
+    // Replaces the current frame with a call to closure, the callee and arguments move down to frame.slots.
+    public static boolean tailCall(CallFrame frame, ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            runtimeError("Expected %d arguments but got %d.",
+                    Integer.toString(closure.function.arity), Integer.toString(argCount));
+            return false;
+        }
+
+        closeUpvalues(frame.slots);
+        System.arraycopy(vm.stack, vm.stackTop - argCount - 1, vm.stack, frame.slots, argCount + 1);
+        vm.stackTop = frame.slots + argCount + 1;
+        vm.calls++;
+        frame.closure = closure;
+        frame.ip = 0;
+        return true;
+    }
+
     public static boolean callValue(Value callee, int argCount) {
         if (IS_OBJ(callee)) {
             switch (OBJ_TYPE(callee)) {
@@ -172,9 +344,20 @@ public class vm {
                 }
                 case OBJ_CLOSURE:
                     return call(AS_CLOSURE(callee), argCount);
+                case OBJ_FUNCTION:
+                    return call(AS_FUNCTION(callee).closure, argCount);
                 case OBJ_NATIVE: {
-                    NativeFn native_ = AS_NATIVE(callee);
-                    Value result = native_.run(argCount, getFrame(argCount));
+                    NativeCall native_ = AS_NATIVE(callee);
+                    if (native_.arity != -1 && native_.arity != argCount) {
+                        runtimeError("Expected %d arguments but got %d.",
+                                Integer.toString(native_.arity), Integer.toString(argCount));
+                        return false;
+                    }
+                    vm.calls++;
+                    Value result = LoxEvents.timingCalls
+                            ? LoxEvents.callNative(native_, argCount)
+                            : native_.call(vm.stack, vm.stackTop - argCount, argCount);
+                    if (result == null) return false;
                     vm.stackTop -= argCount + 1;
                     push(result);
                     return true;
@@ -213,10 +396,60 @@ public class vm {
         return invokeFromClass(instance.klass, name, argCount);
     }
 
-    static ObjUpvalue captureUpvalue(Value local) {
+    // Guard of an inlined call : true when OP_CALL would call function, whose body follows the guard.
+    static boolean inlinedCall(ObjFunction function, int argCount) {
+        Value callee = peek(argCount);
+        return IS_OBJ(callee) && (AS_OBJ(callee) == function || AS_OBJ(callee) == function.closure)
+                && vm.frameCount < vm.framesMax;
+    }
+
+    // The same for OP_INVOKE : an instance whose class still has function as the method and no field shadows it.
+    static boolean inlinedInvoke(ObjString name, ObjFunction function, int argCount) {
+        Value receiver = peek(argCount);
+        if (!IS_INSTANCE(receiver) || vm.frameCount >= vm.framesMax) return false;
+        ObjInstance instance = AS_INSTANCE(receiver);
+        Value method = new NilValue();
+        if (tableGet(instance.fields, name, method)) return false;
+        return tableGet(instance.klass.methods, name, method) && AS_OBJ(method) == function.closure;
+    }
+
+    // Leaves an inlined body : the result replaces the callee and its arguments, which start at slot.
+    static void inlineReturn(CallFrame frame, int slot) {
+        Value result = vm.stack[vm.stackTop - 1];
+        vm.stackTop = frame.slots + slot;
+        push(result);
+    }
+
+    // Globals hoisted out of a loop, see Compiler.hoist() : the hidden local holds the value in vm.stack and
+    // the globalVersion it was read at in vm.numbers, -1 while the global is undefined.
+    static void hoist(ObjString name) {
+        name.hoisted = true;
+        Value value = new NilValue();
+        boolean defined = tableGet(vm.globals, name, value);
+        push(value);
+        vm.numbers[vm.stackTop - 1] = defined ? vm.globalVersion : -1;
+    }
+
+    // Pushes the hoisted global, read again when a hoisted global was stored since.
+    static boolean getHoisted(CallFrame frame, int slot, ObjString name) {
+        int index = frame.slots + slot;
+        if (vm.numbers[index] != vm.globalVersion) {
+            Value value = new NilValue();
+            if (!tableGet(vm.globals, name, value)) {
+                runtimeError("Undefined variable '%s'.", name.chars);
+                return false;
+            }
+            vm.stack[index] = value;
+            vm.numbers[index] = vm.globalVersion;
+        }
+        push(vm.stack[index]);
+        return true;
+    }
+
+    static ObjUpvalue captureUpvalue(int local) {
         ObjUpvalue prevUpvalue = null;
         ObjUpvalue upvalue = vm.openUpvalues;
-        while (upvalue != null && upvalue.location != local) {
+        while (upvalue != null && upvalue.location > local) {
             prevUpvalue = upvalue;
             upvalue = upvalue.next;
         }
@@ -236,17 +469,20 @@ public class vm {
         return createdUpvalue;
     }
 
-    static void closeUpvalues(Value last) {
-        while (vm.openUpvalues != null && vm.openUpvalues.location != last) {
+    static void closeUpvalues(int last) {
+        while (vm.openUpvalues != null && vm.openUpvalues.location >= last) {
             ObjUpvalue upvalue = vm.openUpvalues;
-            upvalue.closed = upvalue.location;
-            // upvalue.location = upvalue.closed;
+            upvalue.closed = vm.stack[upvalue.location];
+            upvalue.location = -1;
             vm.openUpvalues = upvalue.next;
         }
     }
 
     public static void defineMethod(ObjString name) {
         Value method = peek(0);
+        if (IS_FUNCTION(method)) {
+            method = OBJ_VAL(AS_FUNCTION(method).closure);
+        }
         ObjClass klass = AS_CLASS(peek(1));
         tableSet(klass.methods, name, method);
         pop();
@@ -260,7 +496,9 @@ public class vm {
         ObjString b = AS_STRING(peek(0));
         ObjString a = AS_STRING(peek(1));
 
-        ObjString result = takeString(a.chars + b.chars);
+        int length = a.length + b.length;
+        String chars = ALLOCATE(a.chars + b.chars, length + 1);
+        ObjString result = takeString(chars);
         pop();
         pop();
         push(OBJ_VAL(result));
@@ -300,6 +538,21 @@ public class vm {
         return AS_STRING(READ_CONSTANT(frame));
     }
 
+    static InterpretResult ADD() {
+        if (IS_STRING(peek(0)) && IS_STRING(peek(1))) {
+            concatenate();
+        } else if (IS_NUMBER(peek(0)) && IS_NUMBER(peek(1))) {
+            double b = AS_NUMBER(pop());
+            double a = AS_NUMBER(pop());
+            push(NUMBER_VAL(a + b));
+        } else {
+            runtimeError(
+                    "Operands must be two numbers or two strings.");
+            return INTERPRET_RUNTIME_ERROR;
+        }
+        return null;
+    }
+
     static InterpretResult BINARY_OP(int instruction) {
         if (!IS_NUMBER(peek(0)) || !IS_NUMBER(peek(1))) {
             runtimeError("Operands must be numbers.");
@@ -326,19 +579,28 @@ public class vm {
     }
 
     static InterpretResult run() {
-        CallFrame frame = vm.frames[vm.frameCount - 1];
+        if (Profiler.sampling) return Profiler.run();
+        if (OpcodeStats.counting) return OpcodeStats.run();
+        if (AllocationProfiler.tracking) return AllocationProfiler.run();
+        if (LoxEvents.timingCalls) return LoxEvents.run();
+        if (Diagnostics.tracing) return Diagnostics.run();
+        if (Jit.enabled) return Jit.run();
+        if (TreeEngine.enabled) return TreeEngine.run();
+
+        return execute(false);
+    }
 
-        for (; ; ) {
-            if (DEBUG_TRACE_EXECUTION) {
-                printf("          ");
-                for (Value slot : vm.stack) {
-                    printf("[ ");
-                    printValue(slot);
-                    printf(" ]");
-                }
-                printf("\n");
-                disassembleInstruction(frame.closure.function.chunk, frame.ip);
-            }
+    // Executes one instruction of the innermost frame. Returns null while the program keeps running.
+    static InterpretResult step() {
+        return execute(true);
+    }
+
+    // The instruction loop. The frame is reloaded only by the instructions that push or pop one; single returns
+    // after the first instruction, for the loops of the diagnostics and the engines that go through step().
+    static InterpretResult execute(boolean single) {
+        CallFrame frame = vm.frames[vm.frameCount - 1];
+        do {
+            vm.instructions++;
 
             int instruction = READ_BYTE(frame);
 
@@ -359,6 +621,124 @@ public class vm {
             } else if (instruction == OP_SET_LOCAL.opcode) {
                 int slot = READ_BYTE(frame);
                 setSlotFromFrame(frame, slot, peek(0));
+            } else if (instruction == OP_GET_LOCAL_RAW.opcode) {
+                pushRaw(vm.numbers[frame.slots + READ_BYTE(frame)]);
+            } else if (instruction == OP_SET_LOCAL_RAW.opcode) {
+                vm.numbers[frame.slots + READ_BYTE(frame)] = vm.numbers[vm.stackTop - 1];
+            } else if (instruction == OP_CONSTANT_RAW.opcode) {
+                pushRaw(AS_NUMBER(READ_CONSTANT(frame)));
+            } else if (instruction == OP_ADD_RAW.opcode) {
+                vm.stackTop--;
+                vm.numbers[vm.stackTop - 1] += vm.numbers[vm.stackTop];
+            } else if (instruction == OP_LESS_RAW.opcode) {
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] < vm.numbers[vm.stackTop]);
+            } else if (instruction == OP_SUBTRACT_RAW.opcode) {
+                vm.stackTop--;
+                vm.numbers[vm.stackTop - 1] -= vm.numbers[vm.stackTop];
+            } else if (instruction == OP_MULTIPLY_RAW.opcode) {
+                vm.stackTop--;
+                vm.numbers[vm.stackTop - 1] *= vm.numbers[vm.stackTop];
+            } else if (instruction == OP_DIVIDE_RAW.opcode) {
+                vm.stackTop--;
+                vm.numbers[vm.stackTop - 1] /= vm.numbers[vm.stackTop];
+            } else if (instruction == OP_GREATER_RAW.opcode) {
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] > vm.numbers[vm.stackTop]);
+            } else if (instruction == OP_EQUAL_RAW.opcode) {
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new BoolValue(vm.numbers[vm.stackTop - 1] == vm.numbers[vm.stackTop]);
+            } else if (instruction == OP_NEGATE_RAW.opcode) {
+                vm.numbers[vm.stackTop - 1] = -vm.numbers[vm.stackTop - 1];
+            } else if (instruction == OP_BOX.opcode) {
+                int index = vm.stackTop - 1 - READ_BYTE(frame);
+                vm.stack[index] = new DoubleValue(vm.numbers[index]);
+            } else if (instruction == OP_UNBOX.opcode) {
+                int index = vm.stackTop - 1 - READ_BYTE(frame);
+                if (!IS_NUMBER(vm.stack[index])) return unboxError(frame);
+                vm.numbers[index] = AS_NUMBER(vm.stack[index]);
+                vm.stack[index] = null;
+            } else if (instruction == OP_DUP.opcode) {
+                if (vm.stackTop == vm.stack.length) growStack();
+                vm.stack[vm.stackTop] = vm.stack[vm.stackTop - 1];
+                vm.numbers[vm.stackTop] = vm.numbers[vm.stackTop - 1];
+                vm.stackTop++;
+            } else if (instruction == OP_CALL_GUARD.opcode) {
+                ObjFunction function = AS_FUNCTION(READ_CONSTANT(frame));
+                int argCount = READ_BYTE(frame);
+                int offset = READ_SHORT(frame);
+                if (!inlinedCall(function, argCount)) frame.ip += offset;
+            } else if (instruction == OP_INVOKE_GUARD.opcode) {
+                ObjString method = READ_STRING(frame);
+                ObjFunction function = AS_FUNCTION(READ_CONSTANT(frame));
+                int argCount = READ_BYTE(frame);
+                int offset = READ_SHORT(frame);
+                if (!inlinedInvoke(method, function, argCount)) frame.ip += offset;
+            } else if (instruction == OP_INLINE_RETURN.opcode) {
+                int slot = READ_BYTE(frame);
+                int offset = READ_SHORT(frame);
+                inlineReturn(frame, slot);
+                frame.ip += offset;
+            } else if (instruction == OP_ADD_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_ADD) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) + AS_NUMBER(b));
+            } else if (instruction == OP_LESS_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_LESS) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new BoolValue(AS_NUMBER(a) < AS_NUMBER(b));
+            } else if (instruction == OP_SUBTRACT_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_SUBTRACT) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) - AS_NUMBER(b));
+            } else if (instruction == OP_GREATER_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_GREATER) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new BoolValue(AS_NUMBER(a) > AS_NUMBER(b));
+            } else if (instruction == OP_MULTIPLY_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_MULTIPLY) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) * AS_NUMBER(b));
+            } else if (instruction == OP_DIVIDE_NUM.opcode) {
+                Value b = vm.stack[vm.stackTop - 1];
+                Value a = vm.stack[vm.stackTop - 2];
+                if (!IS_NUMBER(a) || !IS_NUMBER(b)) {
+                    if (dequicken(frame, OP_DIVIDE) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                vm.stackTop--;
+                vm.stack[vm.stackTop - 1] = new DoubleValue(AS_NUMBER(a) / AS_NUMBER(b));
+            } else if (instruction == OP_ADD_STR.opcode) {
+                if (!IS_STRING(peek(0)) || !IS_STRING(peek(1))) {
+                    if (dequicken(frame, OP_ADD) != null) return INTERPRET_RUNTIME_ERROR;
+                    continue;
+                }
+                concatenate();
             } else if (instruction == OP_GET_GLOBAL.opcode) {
                 ObjString name = READ_STRING(frame);
                 Value value = new NilValue();
@@ -370,20 +750,27 @@ public class vm {
             } else if (instruction == OP_DEFINE_GLOBAL.opcode) {
                 ObjString name = READ_STRING(frame);
                 tableSet(vm.globals, name, peek(0));
+                if (name.hoisted) vm.globalVersion++;
                 pop();
             } else if (instruction == OP_SET_GLOBAL.opcode) {
                 ObjString name = READ_STRING(frame);
+                if (name.hoisted) vm.globalVersion++;
                 if (tableSet(vm.globals, name, peek(0))) {
                     tableDelete(vm.globals, name);
                     runtimeError("Undefined variable '%s'.", name.chars);
                     return INTERPRET_RUNTIME_ERROR;
                 }
+            } else if (instruction == OP_HOIST.opcode) {
+                hoist(READ_STRING(frame));
+            } else if (instruction == OP_GET_HOISTED.opcode) {
+                int slot = READ_BYTE(frame);
+                if (!getHoisted(frame, slot, READ_STRING(frame))) return INTERPRET_RUNTIME_ERROR;
             } else if (instruction == OP_GET_UPVALUE.opcode) {
                 int slot = READ_BYTE(frame);
-                push(frame.closure.upvalues[slot].location);
+                push(getUpvalue(frame.closure.upvalues[slot]));
             } else if (instruction == OP_SET_UPVALUE.opcode) {
                 int slot = READ_BYTE(frame);
-                frame.closure.upvalues[slot].location.set(peek(0));
+                setUpvalue(frame.closure.upvalues[slot], peek(0));
             } else if (instruction == OP_GET_PROPERTY.opcode) {
                 if (!IS_INSTANCE(peek(0))) {
                     runtimeError("Only instances have properties.");
@@ -420,29 +807,76 @@ public class vm {
                 if (!bindMethod(superclass, name)) {
                     return INTERPRET_RUNTIME_ERROR;
                 }
+            } else if (instruction == OP_BUILD_LIST.opcode) {
+                int itemCount = READ_BYTE(frame);
+                ObjList list = newList();
+                push(OBJ_VAL(list));
+                for (int i = itemCount; i > 0; i--) {
+                    listAppend(list, peek(i));
+                }
+                vm.stackTop -= itemCount + 1;
+                push(OBJ_VAL(list));
+            } else if (instruction == OP_BUILD_MAP.opcode) {
+                int entryCount = READ_BYTE(frame);
+                ObjMap map = newMap();
+                push(OBJ_VAL(map));
+                for (int i = entryCount * 2; i > 0; i -= 2) {
+                    mapSet(map, peek(i), peek(i - 1));
+                }
+                vm.stackTop -= entryCount * 2 + 1;
+                push(OBJ_VAL(map));
+            } else if (instruction == OP_GET_INDEX.opcode) {
+                Value value;
+                if (IS_MAP(peek(1))) {
+                    value = new NilValue();
+                    mapGet(AS_MAP(peek(1)), peek(0), value);
+                } else if (IS_LIST(peek(1))) {
+                    ObjList list = AS_LIST(peek(1));
+                    int index = listIndex(list, peek(0));
+                    if (index == -1) {
+                        runtimeError("List index must be an integer in range.");
+                        return INTERPRET_RUNTIME_ERROR;
+                    }
+                    value = listGet(list, index);
+                } else {
+                    runtimeError("Only lists and maps can be indexed.");
+                    return INTERPRET_RUNTIME_ERROR;
+                }
+                pop();
+                pop();
+                push(value);
+            } else if (instruction == OP_SET_INDEX.opcode) {
+                if (IS_MAP(peek(2))) {
+                    mapSet(AS_MAP(peek(2)), peek(1), peek(0));
+                } else if (IS_LIST(peek(2))) {
+                    ObjList list = AS_LIST(peek(2));
+                    int index = listIndex(list, peek(1));
+                    if (index == -1) {
+                        runtimeError("List index must be an integer in range.");
+                        return INTERPRET_RUNTIME_ERROR;
+                    }
+                    listSet(list, index, peek(0));
+                } else {
+                    runtimeError("Only lists and maps can be indexed.");
+                    return INTERPRET_RUNTIME_ERROR;
+                }
+                Value value = pop();
+                pop();
+                pop();
+                push(value);
             } else if (instruction == OP_EQUAL.opcode) {
                 Value b = pop();
                 Value a = pop();
                 push(BOOL_VAL(valuesEqual(a, b)));
-            } else if (instruction == OP_GREATER.opcode) {
-                BINARY_OP(instruction);
-            } else if (instruction == OP_LESS.opcode) {
-                BINARY_OP(instruction);
+            } else if (instruction == OP_GREATER.opcode || instruction == OP_LESS.opcode) {
+                quicken(frame, instruction);
+                if (BINARY_OP(instruction) != null) return INTERPRET_RUNTIME_ERROR;
             } else if (instruction == OP_ADD.opcode) {
-                if (IS_STRING(peek(0)) && IS_STRING(peek(1))) {
-                    concatenate();
-                } else if (IS_NUMBER(peek(0)) && IS_NUMBER(peek(1))) {
-                    double b = AS_NUMBER(pop());
-                    double a = AS_NUMBER(pop());
-                    push(NUMBER_VAL(a + b));
-                } else {
-                    runtimeError(
-                            "Operands must be two numbers or two strings.");
-                    return INTERPRET_RUNTIME_ERROR;
-                }
-                continue;
+                quicken(frame, instruction);
+                if (ADD() != null) return INTERPRET_RUNTIME_ERROR;
             } else if (instruction == OP_SUBTRACT.opcode || instruction == OP_MULTIPLY.opcode || instruction == OP_DIVIDE.opcode) {
-                BINARY_OP(instruction);
+                quicken(frame, instruction);
+                if (BINARY_OP(instruction) != null) return INTERPRET_RUNTIME_ERROR;
             } else if (instruction == OP_NOT.opcode) {
                 push(BOOL_VAL(isFalsey(pop())));
             } else if (instruction == OP_NEGATE.opcode) {
@@ -453,7 +887,7 @@ public class vm {
                 push(NUMBER_VAL(-AS_NUMBER(pop())));
             } else if (instruction == OP_PRINT.opcode) {
                 printValue(pop());
-                printf("\n");
+                stdout.println();
             } else if (instruction == OP_JUMP.opcode) {
                 int offset = READ_SHORT(frame);
                 frame.ip += offset;
@@ -469,7 +903,21 @@ public class vm {
                     return INTERPRET_RUNTIME_ERROR;
                 }
                 frame = vm.frames[vm.frameCount - 1];
-
+            } else if (instruction == OP_TAIL_CALL.opcode) {
+                int argCount = READ_BYTE(frame);
+                Value callee = peek(argCount);
+                if (IS_CLOSURE(callee) || IS_FUNCTION(callee)) {
+                    ObjClosure closure = IS_CLOSURE(callee) ? AS_CLOSURE(callee) : AS_FUNCTION(callee).closure;
+                    if (!tailCall(frame, closure, argCount)) {
+                        return INTERPRET_RUNTIME_ERROR;
+                    }
+                } else {
+                    // Other callees return through the OP_RETURN that follows.
+                    if (!callValue(callee, argCount)) {
+                        return INTERPRET_RUNTIME_ERROR;
+                    }
+                }
+                frame = vm.frames[vm.frameCount - 1];
             } else if (instruction == OP_INVOKE.opcode) {
                 ObjString method = READ_STRING(frame);
                 int argCount = READ_BYTE(frame);
@@ -493,17 +941,17 @@ public class vm {
                     boolean isLocal = (READ_BYTE(frame) == 1);
                     int index = READ_BYTE(frame);
                     if (isLocal) {
-                        closure.upvalues[i] = captureUpvalue(getSlotFromFrame(frame, index));
+                        closure.upvalues[i] = captureUpvalue(frame.slots + index);
                     } else {
                         closure.upvalues[i] = frame.closure.upvalues[index];
                     }
                 }
             } else if (instruction == OP_CLOSE_UPVALUE.opcode) {
-                closeUpvalues(vm.stack[vm.stackTop - 1]);
+                closeUpvalues(vm.stackTop - 1);
                 pop();
             } else if (instruction == OP_RETURN.opcode) {
                 Value result = pop();
-                closeUpvalues(getSlotFromFrame(frame, 0));
+                closeUpvalues(frame.slots);
                 vm.frameCount--;
                 if (vm.frameCount == 0) {
                     pop();
@@ -531,40 +979,152 @@ public class vm {
             } else {
                 throw new RuntimeException("Instruction : [ " + instruction + " ] no implement in VM.");
             }
+        } while (!single);
+        return null;
+    }
+
+    public static InterpretResult interpret(String source) {
+        ObjFunction function = compileScript(source);
+        if (function == null) {
+            stdout.flush();
+            Diagnostics.flush();
+            return INTERPRET_COMPILE_ERROR;
         }
+        return runScript(function);
     }
 
-    static InterpretResult interpret(String source) {
+    // Compiles source as a top-level script, returns null on a compile error.
+    public static ObjFunction compileScript(String source) {
+        LoxEvents.CompileEvent event = new LoxEvents.CompileEvent();
+        event.begin();
+        long start = System.nanoTime();
         ObjFunction function = compile(source);
-        if (function == null) return INTERPRET_COMPILE_ERROR;
+        vm.compileNanos += System.nanoTime() - start;
+        vm.compileCount++;
+        if (event.shouldCommit()) {
+            event.sourceLength = source.length();
+            event.success = function != null;
+            event.commit();
+        }
+        return function;
+    }
 
+    // Nothing keeps a compiled script reachable until it is called here, so nothing may allocate in between.
+    public static InterpretResult runScript(ObjFunction function) {
         push(OBJ_VAL(function));
         ObjClosure closure = newClosure(function);
         pop();
         push(OBJ_VAL(closure));
         call(closure, 0);
 
-        return run();
+        InterpretResult result = run();
+        stdout.flush();
+        Diagnostics.flush();
+        return result;
+    }
+
+    // Keeps a script compiled ahead of running reachable until the VM is freed, by leaving it on the stack
+    // below the frames runScript() pushes.
+    public static void retainScript(ObjFunction function) {
+        push(OBJ_VAL(function));
+    }
+
+    // Redirects what the script prints, flushing the previous sink. Returns the previous sink.
+    public static OutputSink setOutput(OutputSink sink) {
+        OutputSink previous = stdout;
+        previous.flush();
+        Utility.stdout = sink;
+        return previous;
     }
 
     //======================================Advanced functions==========================================================
+    // Rewrites the generic arithmetic or comparison instruction just read to the form specialized for the current
+    // operand types, unless they fit no specialized form or the site already failed a guard once. The quickened
+    // forms have the same length as the generic ones.
+    private static void quicken(CallFrame frame, int instruction) {
+        if (!quickening) return;
+        Chunk chunk = frame.closure.function.chunk;
+        int offset = frame.ip - 1;
+        if (chunk.polymorphic != null && chunk.polymorphic.get(offset)) return;
+
+        boolean numbers = IS_NUMBER(peek(0)) && IS_NUMBER(peek(1));
+        OpCode quickened = null;
+        if (instruction == OP_ADD.opcode) {
+            if (numbers) quickened = OP_ADD_NUM;
+            else if (IS_STRING(peek(0)) && IS_STRING(peek(1))) quickened = OP_ADD_STR;
+        } else if (numbers) {
+            if (instruction == OP_SUBTRACT.opcode) quickened = OP_SUBTRACT_NUM;
+            else if (instruction == OP_MULTIPLY.opcode) quickened = OP_MULTIPLY_NUM;
+            else if (instruction == OP_DIVIDE.opcode) quickened = OP_DIVIDE_NUM;
+            else if (instruction == OP_GREATER.opcode) quickened = OP_GREATER_NUM;
+            else if (instruction == OP_LESS.opcode) quickened = OP_LESS_NUM;
+        }
+        if (quickened != null) chunk.code.set(offset, quickened.opcode);
+    }
+
+    // A quickened guard failed : puts the generic instruction back for good and executes that instead.
+    private static InterpretResult dequicken(CallFrame frame, OpCode generic) {
+        Chunk chunk = frame.closure.function.chunk;
+        int offset = frame.ip - 1;
+        if (chunk.polymorphic == null) chunk.polymorphic = new BitSet();
+        chunk.polymorphic.set(offset);
+        chunk.code.set(offset, generic.opcode);
+        return generic == OP_ADD ? ADD() : BINARY_OP(generic.opcode);
+    }
 
     private static Value getSlotFromFrame(CallFrame frame, int slot) {
         return vm.stack[frame.slots + slot];
     }
 
+    // Slots are replaced, never mutated : the same Value may be shared by constants, fields and other slots.
     private static void setSlotFromFrame(CallFrame frame, int slot, Value value) {
-        vm.stack[frame.slots + slot].set(value);
+        vm.stack[frame.slots + slot] = value;
     }
 
-    private static Value[] getFrame(int count) {
-        Value[] frame = new Value[count];
-        int j = 0;
-        for (int i = vm.stackTop - count; i < vm.stackTop; i++) {
-            frame[j] = vm.stack[i];
-            j++;
+    private static void growStack() {
+        Value[] stack = new Value[vm.stack.length * 2];
+        System.arraycopy(vm.stack, 0, stack, 0, vm.stackTop);
+        vm.stack = stack;
+        double[] numbers = new double[stack.length];
+        System.arraycopy(vm.numbers, 0, numbers, 0, vm.stackTop);
+        vm.numbers = numbers;
+    }
+
+    // OP_UNBOX stands in for the type check of the raw operator after it, so it reports that operator's error.
+    private static InterpretResult unboxError(CallFrame frame) {
+        if (frame.closure.function.chunk.code.get(frame.ip) == OP_ADD_RAW.opcode) {
+            runtimeError("Operands must be two numbers or two strings.");
+        } else {
+            runtimeError("Operands must be numbers.");
+        }
+        return INTERPRET_RUNTIME_ERROR;
+    }
+
+    static void pushRaw(double value) {
+        if (vm.stackTop == vm.stack.length) growStack();
+        vm.stack[vm.stackTop] = null;
+        vm.numbers[vm.stackTop++] = value;
+    }
+
+    private static void growFrames(int capacity) {
+        CallFrame[] frames = new CallFrame[Math.min(capacity, vm.framesMax)];
+        System.arraycopy(vm.frames, 0, frames, 0, vm.frames.length);
+        for (int i = vm.frames.length; i < frames.length; i++) {
+            frames[i] = new CallFrame();
+        }
+        vm.frames = frames;
+    }
+
+    static Value getUpvalue(ObjUpvalue upvalue) {
+        return upvalue.location == -1 ? upvalue.closed : vm.stack[upvalue.location];
+    }
+
+    static void setUpvalue(ObjUpvalue upvalue, Value value) {
+        if (upvalue.location == -1) {
+            upvalue.closed = value;
+        } else {
+            vm.stack[upvalue.location] = value;
         }
-        return frame;
     }
 }
 